@@ -0,0 +1,96 @@
+package ro.andob.jpegturbo;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+final class AsyncReencoder
+{
+    private static final AtomicInteger reencodeThreadCount = new AtomicInteger(0);
+    static final Executor DEFAULT_EXECUTOR = createDefaultExecutor();
+
+    private static Executor createDefaultExecutor()
+    {
+        //reencoding is CPU bound, more threads than cores only add memory pressure.
+        //this limit is shared by all async reencodes of the app, whatever the backend
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable ->
+        {
+            Thread thread = new Thread(runnable, "jpegturbo-reencode-"+reencodeThreadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public static CompletableFuture<ReencodeResult> reencode(NativeImplementation nativeImpl, JPEGReencodeArgs args, Executor executor)
+    {
+        CompletableFuture<ReencodeResult> future = new CompletableFuture<>();
+        AtomicReference<Thread> runner = new AtomicReference<>();
+        long submitTime = System.nanoTime();
+
+        executor.execute(() ->
+        {
+            //under the same lock as the cancellation below: either the cancellation sees this thread and interrupts it,
+            //or this thread sees the cancellation (while still queued, or right now) and does not start
+            synchronized (runner)
+            {
+                if (future.isDone())
+                    return;
+
+                runner.set(Thread.currentThread());
+            }
+
+            try
+            {
+                future.complete(reencodeBlocking(nativeImpl, args, System.nanoTime() - submitTime));
+            }
+            catch (Throwable ex)
+            {
+                future.completeExceptionally(ex);
+            }
+            finally
+            {
+                //the interrupt must not leak into the next job of this pool thread
+                synchronized (runner) { runner.set(null); }
+                Thread.interrupted();
+            }
+        });
+
+        //CompletableFuture.cancel does not interrupt. The native progress monitor treats an interrupt as a cancellation
+        future.whenComplete((result, ex) ->
+        {
+            if (future.isCancelled())
+            {
+                synchronized (runner)
+                {
+                    Thread thread = runner.get();
+                    if (thread != null)
+                        thread.interrupt();
+                }
+            }
+        });
+
+        return future;
+    }
+
+    //called from the coroutine wrappers as well, which interrupt the calling thread when the coroutine is cancelled
+    static ReencodeResult reencodeBlocking(NativeImplementation nativeImpl, JPEGReencodeArgs args, long queueWaitNanos)
+    {
+        try
+        {
+            return Reencoder.reencodeOrThrow(nativeImpl, args, queueWaitNanos);
+        }
+        catch (Throwable ex)
+        {
+            args.getErrorLogger().accept(ex);
+            throw ex;
+        }
+    }
+}
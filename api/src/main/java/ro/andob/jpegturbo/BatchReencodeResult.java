@@ -0,0 +1,152 @@
+package ro.andob.jpegturbo;
+
+import java.util.Collections;
+import java.util.List;
+
+public final class BatchReencodeResult
+{
+    private final List<FileResult> fileResults;
+    private final long wallTimeMillis;
+
+    BatchReencodeResult(List<FileResult> fileResults, long wallTimeMillis)
+    {
+        this.fileResults = Collections.unmodifiableList(fileResults);
+        this.wallTimeMillis = wallTimeMillis;
+    }
+
+    //in the same order as the list of args passed to reencodeAll
+    public List<FileResult> getFileResults()
+    {
+        return fileResults;
+    }
+
+    public int getSucceededCount()
+    {
+        int count = 0;
+        for (FileResult fileResult : fileResults)
+            if (fileResult.isSuccessful())
+                count++;
+        return count;
+    }
+
+    public int getFailedCount()
+    {
+        return fileResults.size() - getSucceededCount();
+    }
+
+    public long getTotalInputSize()
+    {
+        long size = 0;
+        for (FileResult fileResult : fileResults)
+            if (fileResult.isSuccessful())
+                size += fileResult.getInputSize();
+        return size;
+    }
+
+    public long getTotalOutputSize()
+    {
+        long size = 0;
+        for (FileResult fileResult : fileResults)
+            if (fileResult.isSuccessful())
+                size += fileResult.getOutputSize();
+        return size;
+    }
+
+    public long getWallTimeMillis()
+    {
+        return wallTimeMillis;
+    }
+
+    //sum of the durations of all jobs. Divided by wall time, this is the effective parallelism
+    public long getTotalDurationMillis()
+    {
+        long duration = 0;
+        for (FileResult fileResult : fileResults)
+            duration += fileResult.getDurationMillis();
+        return duration;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "BatchReencodeResult{" +
+            "succeeded=" + getSucceededCount() +
+            ", failed=" + getFailedCount() +
+            ", totalInputSize=" + getTotalInputSize() +
+            ", totalOutputSize=" + getTotalOutputSize() +
+            ", wallTimeMillis=" + wallTimeMillis +
+            ", totalDurationMillis=" + getTotalDurationMillis() +
+            '}';
+    }
+
+    public static final class FileResult
+    {
+        private final JPEGReencodeArgs args;
+        private final ReencodeResult result;
+        private final Throwable error;
+        private final long inputSize;
+        private final long outputSize;
+        private final long durationMillis;
+
+        FileResult(JPEGReencodeArgs args, ReencodeResult result, Throwable error, long inputSize, long outputSize, long durationMillis)
+        {
+            this.args = args;
+            this.result = result;
+            this.error = error;
+            this.inputSize = inputSize;
+            this.outputSize = outputSize;
+            this.durationMillis = durationMillis;
+        }
+
+        public JPEGReencodeArgs getArgs()
+        {
+            return args;
+        }
+
+        public boolean isSuccessful()
+        {
+            return error == null;
+        }
+
+        //null if not successful. Tells whether the original was kept, the reencode skipped, or the output taken from the cache
+        public ReencodeResult getResult()
+        {
+            return result;
+        }
+
+        //null if successful
+        public Throwable getError()
+        {
+            return error;
+        }
+
+        public long getInputSize()
+        {
+            return inputSize;
+        }
+
+        //0 if not successful
+        public long getOutputSize()
+        {
+            return outputSize;
+        }
+
+        public long getDurationMillis()
+        {
+            return durationMillis;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "FileResult{" +
+                "args=" + args +
+                ", result=" + result +
+                ", error=" + error +
+                ", inputSize=" + inputSize +
+                ", outputSize=" + outputSize +
+                ", durationMillis=" + durationMillis +
+                '}';
+        }
+    }
+}
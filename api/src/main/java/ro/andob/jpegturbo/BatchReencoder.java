@@ -0,0 +1,75 @@
+package ro.andob.jpegturbo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+final class BatchReencoder
+{
+    static int defaultParallelism()
+    {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    public static BatchReencodeResult reencodeAll(NativeImplementation nativeImpl, List<JPEGReencodeArgs> argsList, int parallelism)
+    {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Invalid parallelism: "+parallelism);
+
+        long startTime = System.nanoTime();
+
+        List<Callable<BatchReencodeResult.FileResult>> jobs = new ArrayList<>(argsList.size());
+        for (JPEGReencodeArgs args : argsList)
+            jobs.add(() -> reencode(nativeImpl, args, /*queueWaitNanos*/ System.nanoTime() - startTime));
+
+        //work stealing: a worker that got small images keeps picking up jobs while another one is busy with a big image
+        ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, Math.max(1, argsList.size())));
+        try
+        {
+            List<BatchReencodeResult.FileResult> fileResults = new ArrayList<>(argsList.size());
+            for (Future<BatchReencodeResult.FileResult> future : pool.invokeAll(jobs))
+                fileResults.add(getResult(future));
+
+            return new BatchReencodeResult(fileResults, (System.nanoTime() - startTime) / 1_000_000);
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    private static BatchReencodeResult.FileResult reencode(NativeImplementation nativeImpl, JPEGReencodeArgs args, long queueWaitNanos)
+    {
+        long startTime = System.nanoTime();
+        long inputSize = 0;
+
+        try
+        {
+            //errors are collected into the result instead of being thrown, one bad file must not stop the batch.
+            //that includes args without an input file
+            inputSize = args.getInputFile().length();
+            ReencodeResult result = Reencoder.reencodeOrThrow(nativeImpl, args, queueWaitNanos);
+
+            return new BatchReencodeResult.FileResult(args, result, /*error*/ null,
+                result.getInputSize(), result.getOutputSize(), (System.nanoTime() - startTime) / 1_000_000);
+        }
+        catch (Throwable ex)
+        {
+            args.getErrorLogger().accept(ex);
+
+            return new BatchReencodeResult.FileResult(args, /*result*/ null, /*error*/ ex,
+                inputSize, /*outputSize*/ 0, (System.nanoTime() - startTime) / 1_000_000);
+        }
+    }
+
+    private static BatchReencodeResult.FileResult getResult(Future<BatchReencodeResult.FileResult> future)
+    {
+        //jobs never throw, invokeAll waits for all of them
+        try { return future.get(); }
+        catch (ExecutionException ex) { throw new RuntimeException(ex.getCause()); }
+        catch (InterruptedException ex) { throw new RuntimeException(ex); }
+    }
+}
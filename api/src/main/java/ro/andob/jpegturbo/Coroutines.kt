@@ -0,0 +1,39 @@
+@file:JvmName("Coroutines")
+
+package ro.andob.jpegturbo
+
+import android.os.OperationCanceledException
+import kotlinx.coroutines.CoroutineDispatcher
+import kotlinx.coroutines.asCoroutineDispatcher
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.ensureActive
+import kotlinx.coroutines.runInterruptible
+
+//the same bounded pool as reencodeAsync, so coroutine and future based reencodes share one concurrency limit
+val reencodeDispatcher: CoroutineDispatcher by lazy { AsyncReencoder.DEFAULT_EXECUTOR.asCoroutineDispatcher() }
+
+//Java classes have no companion objects to extend, hence one top level function per backend
+suspend fun reencodeWithJPEGTurbo(args: JPEGReencodeArgs): ReencodeResult =
+    reencode(NativeImplementation.jpegTurbo(), args)
+
+suspend fun reencodeWithMozjpeg(args: JPEGReencodeArgs): ReencodeResult =
+    reencode(NativeImplementation.mozjpeg(), args)
+
+suspend fun reencodeWithJpegli(args: JPEGReencodeArgs): ReencodeResult =
+    reencode(NativeImplementation.jpegli(), args)
+
+private suspend fun reencode(nativeImpl: NativeImplementation, args: JPEGReencodeArgs): ReencodeResult
+{
+    val submitTime = System.nanoTime()
+    try
+    {
+        //cancelling the coroutine interrupts the reencoding thread, the native progress monitor then aborts the codec
+        return runInterruptible(reencodeDispatcher) { AsyncReencoder.reencodeBlocking(nativeImpl, args, System.nanoTime() - submitTime) }
+    }
+    catch (ex: OperationCanceledException)
+    {
+        //a cancelled coroutine must end with a CancellationException, otherwise its parent fails
+        currentCoroutineContext().ensureActive()
+        throw ex
+    }
+}
@@ -6,4 +6,10 @@ final class ExitCodes
     static final int EXIT_FAILURE = 1;
     static final int EXIT_SUCCESS = 0;
     static final int EXIT_WARNING = 2;
+
+    //from Bindings.c
+    static final int EXIT_CANCELLED = 3;
+    static final int EXIT_TIMEOUT = 4;
+    //the output grew over ReencodeControl.setMaxOutputSize, encoding was aborted
+    static final int EXIT_NO_GAIN = 5;
 }
@@ -1,11 +1,28 @@
 package ro.andob.jpegturbo;
 
-import android.content.Context;
+import android.os.Debug;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -13,21 +30,126 @@ import static ro.andob.jpegturbo.ExitCodes.EXIT_SUCCESS;
 
 final class FileIOUtils
 {
-    private final Context context;
+    static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    private static final long PIPE_UNBLOCK_INTERVAL_MILLIS = 10;
+    //a pump the pipe executor did not start by then gets a thread of its own
+    private static final long PIPE_START_TIMEOUT_MILLIS = 100;
+
+    private static final AtomicInteger pipeThreadCount = new AtomicInteger(0);
+    static final Executor DEFAULT_PIPE_EXECUTOR = createDefaultPipeExecutor();
+
+    private final File scratchDirectory;
     private final NativeImplementation nativeImpl;
+    private final Executor pipeExecutor;
     private final Consumer<Throwable> exceptionLogger;
+    private long pipeSetupWallTimeNanos = 0;
+    private long pipeSetupCpuTimeNanos = 0;
 
-    public FileIOUtils(Context context, NativeImplementation nativeImpl, Consumer<Throwable> exceptionLogger)
+    public FileIOUtils(File scratchDirectory, NativeImplementation nativeImpl, Executor pipeExecutor, Consumer<Throwable> exceptionLogger)
     {
-        this.context = Objects.requireNonNull(context);
+        this.scratchDirectory = Objects.requireNonNull(scratchDirectory);
         this.nativeImpl = Objects.requireNonNull(nativeImpl);
+        this.pipeExecutor = Objects.requireNonNull(pipeExecutor);
         this.exceptionLogger = Objects.requireNonNull(exceptionLogger);
     }
 
+    private static Executor createDefaultPipeExecutor()
+    {
+        //a pump lives exactly as long as its reencode job, so twice the core count covers any sane parallelism.
+        //extra pumps wait in the queue, after PIPE_START_TIMEOUT_MILLIS they are moved to a dedicated thread
+        int maxThreads = Math.max(2, Runtime.getRuntime().availableProcessors() * 2);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), FileIOUtils::createPipeThread);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static Thread createPipeThread(Runnable runnable)
+    {
+        Thread thread = new Thread(runnable, "jpegturbo-pipe-"+pipeThreadCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+
     File getFileWithUniqueName()
     {
-        File file = new File(context.getCacheDir(), UUID.randomUUID().toString().replace("-", ""));
-        return file.exists() ? getFileWithUniqueName() : file;
+        return getFileWithUniqueName(scratchDirectory);
+    }
+
+    static File getFileWithUniqueName(File directory)
+    {
+        File file = new File(directory, UUID.randomUUID().toString().replace("-", ""));
+        return file.exists() ? getFileWithUniqueName(directory) : file;
+    }
+
+    static boolean isSameFile(File file1, File file2)
+    {
+        try { return file1.getCanonicalFile().equals(file2.getCanonicalFile()); }
+        catch (IOException ex) { return file1.getAbsoluteFile().equals(file2.getAbsoluteFile()); }
+    }
+
+    //in the same directory, so that it can be renamed over the file atomically
+    static File getSiblingTempFile(File file)
+    {
+        File tempFile = new File(file.getAbsoluteFile().getParentFile(),
+            "."+file.getName()+"."+UUID.randomUUID().toString().replace("-", "")+".tmp");
+        return tempFile.exists() ? getSiblingTempFile(file) : tempFile;
+    }
+
+    static void copy(File sourceFile, File targetFile, boolean fsync)
+    {
+        try { transfer(sourceFile, targetFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING); }
+        catch (IOException ex) { throw new UncheckedIOException(ex); }
+
+        if (fsync)
+            fsync(targetFile);
+    }
+
+    //readers see either the old or the new content, never a partially written file
+    static void replaceAtomically(File sourceFile, File targetFile, boolean fsync)
+    {
+        try
+        {
+            if (fsync)
+                fsync(sourceFile);
+
+            Files.move(sourceFile.toPath(), targetFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+            //the rename itself is only durable once the directory entry is flushed
+            if (fsync)
+                fsyncQuietly(targetFile.getAbsoluteFile().getParentFile());
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    static void fsync(File file)
+    {
+        try
+        {
+            FileDescriptor fileDescriptor = Os.open(file.getAbsolutePath(), OsConstants.O_WRONLY, 0);
+            try { Os.fsync(fileDescriptor); }
+            finally { Os.close(fileDescriptor); }
+        }
+        catch (ErrnoException ex)
+        {
+            throw new UncheckedIOException(new IOException("Cannot fsync "+file.getAbsolutePath(), ex));
+        }
+    }
+
+    //some file systems do not support opening or syncing directories
+    private static void fsyncQuietly(File directory)
+    {
+        try
+        {
+            FileDescriptor fileDescriptor = Os.open(directory.getAbsolutePath(), OsConstants.O_RDONLY, 0);
+            try { Os.fsync(fileDescriptor); }
+            finally { Os.close(fileDescriptor); }
+        }
+        catch (ErrnoException ignored) {}
     }
 
     private File createPipeFile()
@@ -41,85 +163,190 @@ final class FileIOUtils
         return pipeFile;
     }
 
-    File createOutputPipeFile(File outputFile)
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    <T> T useOutputPipeFile(File outputFile, Function<File, T> consumer)
     {
+        long startWallTime = System.nanoTime(), startCpuTime = Debug.threadCpuTimeNanos();
         File outputPipeFile = createPipeFile();
+        PipePump pump = new PipePump(
+            /*transfer*/ () -> transfer(outputPipeFile, outputFile,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING),
+            /*unblock*/ () -> unblockPipeFile(outputPipeFile, OsConstants.O_WRONLY));
+        pump.start(pipeExecutor);
+        addPipeSetupTime(startWallTime, startCpuTime);
 
-        new Thread(() ->
+        try { return consumer.apply(outputPipeFile); }
+        finally
         {
-//            try (BufferedSource source = Okio.buffer(Okio.source(outputPipeFile))) {
-//                try (BufferedSink sink = Okio.buffer(Okio.sink(outputFile))) {
-//                    sink.writeAll(source);
-//                }
-//            }
-            try
-            {
-                Files.write(outputFile.toPath(), Files.readAllBytes(outputPipeFile.toPath()), StandardOpenOption.WRITE);
-            }
-            catch (Exception ex)
-            {
-                exceptionLogger.accept(ex);
-            }
-        }).start();
-
-        return outputPipeFile;
+            //the pump must drain everything the native side wrote, failures are still reported
+            pump.join(/*abandon*/ false);
+            outputPipeFile.delete();
+        }
     }
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    <T> T useOutputPipeFile(File inputFile, Function<File, T> consumer)
+    <T> T useInputPipeFile(File inputFile, Function<File, T> consumer)
     {
-        File outputPipeFile = createOutputPipeFile(inputFile);
-        try { return consumer.apply(outputPipeFile); }
-        finally { outputPipeFile.delete(); }
+        long startWallTime = System.nanoTime(), startCpuTime = Debug.threadCpuTimeNanos();
+        File inputPipeFile = createPipeFile();
+        PipePump pump = new PipePump(
+            /*transfer*/ () -> transfer(inputFile, inputPipeFile, StandardOpenOption.WRITE),
+            /*unblock*/ () -> unblockPipeFile(inputPipeFile, OsConstants.O_RDONLY));
+        pump.start(pipeExecutor);
+        addPipeSetupTime(startWallTime, startCpuTime);
+
+        try { return consumer.apply(inputPipeFile); }
+        finally
+        {
+            //the native side stops reading at EOI, a broken pipe after that point is expected
+            pump.join(/*abandon*/ true);
+            inputPipeFile.delete();
+        }
     }
 
-    File createInputPipeFile(File inputFile)
+    private static void unblockPipeFile(File pipeFile, int openFlags)
     {
-        File inputPipeFile = createPipeFile();
+        try { Os.close(Os.open(pipeFile.getAbsolutePath(), openFlags | OsConstants.O_NONBLOCK, 0)); }
+        catch (ErrnoException ignored) {}
+    }
 
-        new Thread(() ->
+    private void addPipeSetupTime(long startWallTime, long startCpuTime)
+    {
+        pipeSetupWallTimeNanos += System.nanoTime() - startWallTime;
+        pipeSetupCpuTimeNanos += Debug.threadCpuTimeNanos() - startCpuTime;
+    }
+
+    long getPipeSetupWallTimeNanos()
+    {
+        return pipeSetupWallTimeNanos;
+    }
+
+    long getPipeSetupCpuTimeNanos()
+    {
+        return pipeSetupCpuTimeNanos;
+    }
+
+    private interface Transfer
+    {
+        void run() throws IOException;
+    }
+
+    private final class PipePump implements Runnable
+    {
+        private final Transfer transfer;
+        private final Runnable unblock;
+        private final AtomicBoolean started = new AtomicBoolean(false);
+        private final CountDownLatch running = new CountDownLatch(1);
+        private final CountDownLatch finished = new CountDownLatch(1);
+        private volatile Thread owner;
+        private boolean ranInline = false;
+        private volatile boolean abandoned = false;
+
+        PipePump(Transfer transfer, Runnable unblock)
+        {
+            this.transfer = transfer;
+            this.unblock = unblock;
+        }
+
+        //the pump must run on another thread than the reencode: both block opening their end of a pipe file
+        //until the other end is opened, and the reencode blocks on a full or empty pipe until the pump catches up.
+        //a direct executor, a busy or single thread executor, or the pool running the reencode itself,
+        //would never get to the pump, so it is moved to a dedicated thread if it did not start in time
+        void start(Executor executor)
         {
-//            try (BufferedSink sink = Okio.buffer(Okio.sink(inputPipeFile))) {
-//                try (BufferedSource source = Okio.buffer(Okio.source(inputFile))) {
-//                    sink.writeAll(source);
-//                }
-//            }
+            owner = Thread.currentThread();
+            executor.execute(this);
+
+            boolean isRunning;
+            try { isRunning = !ranInline && running.await(PIPE_START_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS); }
+            catch (InterruptedException ex)
+            {
+                isRunning = false;
+                Thread.currentThread().interrupt();
+            }
+
+            if (!isRunning && started.compareAndSet(false, true))
+                createPipeThread(this::pump).start();
+        }
+
+        @Override
+        public void run()
+        {
+            //ran inline by a direct executor, the dedicated thread takes over right away
+            if (Thread.currentThread() == owner)
+            {
+                ranInline = true;
+                return;
+            }
+
+            if (!started.compareAndSet(false, true))
+                return;
+
+            pump();
+        }
+
+        private void pump()
+        {
+            running.countDown();
+
             try
             {
-                Files.write(inputPipeFile.toPath(), Files.readAllBytes(inputFile.toPath()), StandardOpenOption.WRITE);
+                transfer.run();
             }
             catch (Exception ex)
             {
-                exceptionLogger.accept(ex);
+                if (!abandoned)
+                    exceptionLogger.accept(ex);
             }
-        }).start();
+            finally
+            {
+                finished.countDown();
+            }
+        }
 
-        return inputPipeFile;
-    }
+        void join(boolean abandon)
+        {
+            abandoned = abandon;
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
-    <T> T useInputPipeFile(File inputFile, Function<File, T> consumer)
-    {
-        File inputPipeFile = createInputPipeFile(inputFile);
-        try { return consumer.apply(inputPipeFile); }
-        finally { inputPipeFile.delete(); }
+            //still queued in the executor, it will never run
+            if (started.compareAndSet(false, true))
+                return;
+
+            //if the native side never opened its end of the pipe, the pump is stuck opening the other end.
+            //opening the native side's end without blocking releases it.
+            //an interrupted (cancelled) reencode still waits for its pump, otherwise the pump thread would leak
+            boolean interrupted = false;
+            while (true)
+            {
+                try
+                {
+                    if (finished.await(PIPE_UNBLOCK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS))
+                        break;
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+
+                unblock.run();
+            }
+
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
     }
 
-    String readFileToString(File file)
+    private static void transfer(File sourceFile, File sinkFile, OpenOption... sinkOpenOptions) throws IOException
     {
-//        try (BufferedSink sink = Okio.buffer(Okio.sink(new ByteArrayOutputStream()))) {
-//            try (BufferedSource source = Okio.buffer(Okio.source(file))) {
-//                sink.writeAll(source);
-//            }
-//        }
-        try
-        {
-            return new String(Files.readAllBytes(file.toPath()));
-        }
-        catch (Exception ex)
+        //copy in small chunks, heap usage must not depend on the image size.
+        //FileChannel.transferTo/transferFrom are not used since they rely on size(), which is always 0 for pipes
+        try (OutputStream sink = Files.newOutputStream(sinkFile.toPath(), sinkOpenOptions);
+             InputStream source = Files.newInputStream(sourceFile.toPath()))
         {
-            exceptionLogger.accept(ex);
-            return "";
+            byte[] buffer = new byte[TRANSFER_BUFFER_SIZE];
+            int readBytes;
+            while ((readBytes = source.read(buffer)) != -1)
+                sink.write(buffer, 0, readBytes);
         }
     }
 }
@@ -0,0 +1,37 @@
+package ro.andob.jpegturbo;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+//the COM marker written with JPEGReencodeArgs.skipAlreadyOptimized, see write_fingerprint in Bindings.c and JpegliNative:
+//"Reencoded by ro.andob.jpegturbo (mozjpeg 2.1.4, progressive, optimized)", the library then the requested options
+final class Fingerprint
+{
+    private static final String PREFIX = "Reencoded by ro.andob.jpegturbo (";
+
+    //written by the same backend, with the same options as requested now: reencoding again would not change anything.
+    //the library version is not compared
+    static boolean matches(String fingerprint, NativeImplementation nativeImpl, JPEGReencodeArgs args)
+    {
+        if (fingerprint == null || !fingerprint.startsWith(PREFIX) || !fingerprint.endsWith(")"))
+            return false;
+
+        String[] parts = fingerprint.substring(PREFIX.length(), fingerprint.length() - 1).split(", ");
+        String library = parts[0].split(" ")[0];
+        Set<String> flags = new HashSet<>(Arrays.asList(parts).subList(1, parts.length));
+        return library.equals(nativeImpl.getLibraryName()) && flags.equals(getFlags(nativeImpl, args));
+    }
+
+    private static Set<String> getFlags(NativeImplementation nativeImpl, JPEGReencodeArgs args)
+    {
+        Set<String> flags = new HashSet<>();
+        if (args.isProgressive())
+            flags.add("progressive");
+        if (args.isOptimize())
+            flags.add("optimized");
+        if (nativeImpl.hasMozjpegExtensions() && args.getMozjpegOptions() != null)
+            flags.addAll(args.getMozjpegOptions().getFingerprintFlags());
+        return flags;
+    }
+}
@@ -0,0 +1,129 @@
+package ro.andob.jpegturbo;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+//default metrics implementation: counters, byte totals and latency histograms per backend. Lock-free.
+//usage: ReencodeMetrics.register(metrics), then read metrics.getBackendMetrics("Mozjpeg").getDuration().getP99()
+public final class HistogramReencodeMetrics implements ReencodeMetrics
+{
+    private final Map<String, BackendMetrics> backendMetrics = new ConcurrentHashMap<>();
+
+    @Override
+    public void onJobStarted(ReencodeJob job)
+    {
+        BackendMetrics metrics = getOrCreateBackendMetrics(job.getBackend());
+        metrics.startedCount.increment();
+        metrics.queueWait.record(job.getQueueWaitNanos());
+    }
+
+    @Override
+    public void onJobFinished(ReencodeJob job)
+    {
+        BackendMetrics metrics = getOrCreateBackendMetrics(job.getBackend());
+        metrics.duration.record(job.getDurationNanos());
+
+        if (job.isSuccessful())
+        {
+            metrics.succeededCount.increment();
+            if (job.getInputSize() != ReencodeResult.UNKNOWN_SIZE && job.getOutputSize() != ReencodeResult.UNKNOWN_SIZE)
+            {
+                metrics.inputBytes.add(job.getInputSize());
+                metrics.outputBytes.add(job.getOutputSize());
+            }
+        }
+        else
+        {
+            metrics.failedCount.increment();
+        }
+    }
+
+    private BackendMetrics getOrCreateBackendMetrics(String backend)
+    {
+        BackendMetrics metrics = backendMetrics.get(backend);
+        return metrics != null ? metrics : backendMetrics.computeIfAbsent(backend, key -> new BackendMetrics());
+    }
+
+    //null if the backend has not been used yet
+    public BackendMetrics getBackendMetrics(String backend)
+    {
+        return backendMetrics.get(backend);
+    }
+
+    public Map<String, BackendMetrics> getBackendMetrics()
+    {
+        return Collections.unmodifiableMap(backendMetrics);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "HistogramReencodeMetrics" + backendMetrics;
+    }
+
+    public static final class BackendMetrics
+    {
+        private final LongAdder startedCount = new LongAdder();
+        private final LongAdder succeededCount = new LongAdder();
+        private final LongAdder failedCount = new LongAdder();
+        private final LongAdder inputBytes = new LongAdder();
+        private final LongAdder outputBytes = new LongAdder();
+        private final LatencyHistogram duration = new LatencyHistogram();
+        private final LatencyHistogram queueWait = new LatencyHistogram();
+
+        private BackendMetrics() {}
+
+        public long getStartedCount()
+        {
+            return startedCount.sum();
+        }
+
+        public long getSucceededCount()
+        {
+            return succeededCount.sum();
+        }
+
+        public long getFailedCount()
+        {
+            return failedCount.sum();
+        }
+
+        //of successful jobs with known sizes
+        public long getInputBytes()
+        {
+            return inputBytes.sum();
+        }
+
+        public long getOutputBytes()
+        {
+            return outputBytes.sum();
+        }
+
+        //of finished jobs, successful or not
+        public LatencyHistogram getDuration()
+        {
+            return duration;
+        }
+
+        public LatencyHistogram getQueueWait()
+        {
+            return queueWait;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "BackendMetrics{" +
+                "started=" + getStartedCount() +
+                ", succeeded=" + getSucceededCount() +
+                ", failed=" + getFailedCount() +
+                ", inputBytes=" + getInputBytes() +
+                ", outputBytes=" + getOutputBytes() +
+                ", duration=" + duration +
+                ", queueWait=" + queueWait +
+                '}';
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package ro.andob.jpegturbo;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+//single-flight: file mode reencodes of the same input with the same options, running at the same time, share one native job.
+//the first caller (the leader) reencodes, the others (followers) wait for it and copy its output.
+//the leader's output file belongs to its caller as soon as the leader returns (it may be deleted, moved, or overwritten
+//with another image), so followers copy from a snapshot owned by the flight, deleted once the last follower is done
+final class InFlightReencodes
+{
+    private static final Map<String, Flight> flights = new HashMap<>();
+
+    //shared by the leader and its followers, guarded by the flights map
+    private static final class Flight
+    {
+        private final String key;
+        private final File outputFile;
+        //completed with null if the leader failed, or if its output could not be snapshotted
+        private final CompletableFuture<ReencodeResult> landing = new CompletableFuture<>();
+        private int followerCount = 0;
+        private boolean hasLanded = false;
+        private File snapshotFile;
+
+        private Flight(String key, File outputFile)
+        {
+            this.key = key;
+            this.outputFile = outputFile;
+        }
+
+        @SuppressWarnings("ResultOfMethodCallIgnored")
+        private void deleteSnapshotIfUnused()
+        {
+            if (hasLanded && followerCount == 0 && snapshotFile != null)
+            {
+                snapshotFile.delete();
+                snapshotFile = null;
+            }
+        }
+    }
+
+    static final class Seat
+    {
+        private final Flight flight;
+        private final boolean leader;
+        private boolean released = false;
+
+        private Seat(Flight flight, boolean leader)
+        {
+            this.flight = flight;
+            this.leader = leader;
+        }
+
+        boolean isLeader()
+        {
+            return leader;
+        }
+
+        //where the leader writes its output, only to recognize a follower writing to the same file
+        File getLeaderOutputFile()
+        {
+            return flight.outputFile;
+        }
+
+        //the leader's result, null if it failed (then the followers reencode themselves). Throws TimeoutException if still in the air
+        ReencodeResult await(long timeoutMillis) throws InterruptedException, TimeoutException
+        {
+            try { return flight.landing.get(timeoutMillis, TimeUnit.MILLISECONDS); }
+            catch (ExecutionException ex) { return null; }
+        }
+
+        //a copy of the leader's output, valid until this follower releases its seat. Null if the original was kept
+        File getSnapshotFile()
+        {
+            synchronized (flights)
+            {
+                return flight.snapshotFile;
+            }
+        }
+
+        //a follower must release its seat once it copied the snapshot, or gave up waiting
+        void release()
+        {
+            synchronized (flights)
+            {
+                if (leader || released)
+                    return;
+
+                released = true;
+                flight.followerCount--;
+                flight.deleteSnapshotIfUnused();
+            }
+        }
+    }
+
+    //the caller either leads a new flight (and must land it, even on failure), or follows the flight already in the air
+    static Seat join(String key, File outputFile)
+    {
+        synchronized (flights)
+        {
+            Flight flight = flights.get(key);
+            if (flight != null)
+            {
+                flight.followerCount++;
+                return new Seat(flight, /*leader*/ false);
+            }
+
+            flight = new Flight(key, outputFile);
+            flights.put(key, flight);
+            return new Seat(flight, /*leader*/ true);
+        }
+    }
+
+    //the leader's output must be complete. Callers joining from now on start a new flight.
+    //the snapshot is only taken if followers are waiting, and if there is an output to copy (result not null, original not kept)
+    static void land(Seat seat, ReencodeResult result, Supplier<File> snapshot)
+    {
+        Flight flight = seat.flight;
+        boolean hasFollowers;
+        synchronized (flights)
+        {
+            flights.remove(flight.key);
+            hasFollowers = flight.followerCount > 0;
+        }
+
+        File snapshotFile = null;
+        if (hasFollowers && result != null && !result.isOriginalKept())
+        {
+            //followers reencode themselves instead
+            try { snapshotFile = snapshot.get(); }
+            catch (RuntimeException ex) { result = null; }
+        }
+
+        synchronized (flights)
+        {
+            flight.snapshotFile = snapshotFile;
+            flight.hasLanded = true;
+            //all the followers may have given up meanwhile
+            flight.deleteSnapshotIfUnused();
+        }
+
+        flight.landing.complete(result);
+    }
+}
@@ -0,0 +1,343 @@
+package ro.andob.jpegturbo;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static ro.andob.jpegturbo.ExitCodes.EXIT_FAILURE;
+
+//read by the native header probe, see struct jpeg_header_info in Bindings.c. Only jpeg_read_header runs, nothing is decoded.
+//usage: JPEGHeader header = JPEGTurbo.probe(file), then header.getWidth(), header.getEstimatedQuality()
+public final class JPEGHeader
+{
+    public enum ColorSpace
+    {
+        //same order as J_COLOR_SPACE in jpeglib.h
+        UNKNOWN, GRAYSCALE, RGB, YCBCR, CMYK, YCCK
+    }
+
+    static final int IMAGE_WIDTH_OFFSET = 0;
+    static final int IMAGE_HEIGHT_OFFSET = 4;
+    static final int NUM_COMPONENTS_OFFSET = 8;
+    static final int PROGRESSIVE_OFFSET = 12;
+    static final int ARITHMETIC_OFFSET = 16;
+    static final int OPTIMIZED_HUFFMAN_TABLES_OFFSET = 20;
+    static final int FINGERPRINT_OFFSET = 24;
+    static final int COLOR_SPACE_OFFSET = 28;
+    static final int FRAME_MARKER_OFFSET = 32;
+    static final int RESTART_INTERVAL_OFFSET = 36;
+    static final int ESTIMATED_QUALITY_OFFSET = 40;
+    static final int NUM_MARKERS_OFFSET = 44;
+    //one int per component, MAX_COMPONENTS of each
+    static final int COMPONENT_IDS_OFFSET = 48;
+    static final int H_SAMP_FACTORS_OFFSET = 88;
+    static final int V_SAMP_FACTORS_OFFSET = 128;
+    static final int MAX_COMPONENTS = 10;
+    //{ int marker, int length, long offset } each
+    static final int MARKERS_OFFSET = 168;
+    static final int MARKER_SIZE = 16;
+    static final int MAX_MARKERS = 64;
+    //NUL terminated ASCII, FINGERPRINT_MAX_LENGTH in Bindings.c
+    static final int FINGERPRINT_TEXT_OFFSET = MARKERS_OFFSET + MAX_MARKERS * MARKER_SIZE;
+    static final int FINGERPRINT_MAX_LENGTH = 256;
+    static final int SIZE = FINGERPRINT_TEXT_OFFSET + FINGERPRINT_MAX_LENGTH;
+
+    private static final int SOF0_MARKER = 0xC0;
+
+    private final int width;
+    private final int height;
+    private final int componentCount;
+    private final boolean progressive;
+    private final boolean arithmetic;
+    private final boolean optimizedHuffmanTables;
+    private final boolean fingerprint;
+    private final String fingerprintText;
+    private final ColorSpace colorSpace;
+    private final int frameMarker;
+    private final int restartInterval;
+    private final int estimatedQuality;
+    private final int markerCount;
+    private final int[] componentIds;
+    private final int[] horizontalSamplingFactors;
+    private final int[] verticalSamplingFactors;
+    private final List<Marker> markers;
+
+    private JPEGHeader(ByteBuffer buffer)
+    {
+        this.width = buffer.getInt(IMAGE_WIDTH_OFFSET);
+        this.height = buffer.getInt(IMAGE_HEIGHT_OFFSET);
+        this.componentCount = buffer.getInt(NUM_COMPONENTS_OFFSET);
+        this.progressive = buffer.getInt(PROGRESSIVE_OFFSET) != 0;
+        this.arithmetic = buffer.getInt(ARITHMETIC_OFFSET) != 0;
+        this.optimizedHuffmanTables = buffer.getInt(OPTIMIZED_HUFFMAN_TABLES_OFFSET) != 0;
+        this.fingerprint = buffer.getInt(FINGERPRINT_OFFSET) != 0;
+        this.fingerprintText = fingerprint ? readFingerprintText(buffer) : null;
+        int colorSpaceOrdinal = buffer.getInt(COLOR_SPACE_OFFSET);
+        this.colorSpace = colorSpaceOrdinal >= 0 && colorSpaceOrdinal < ColorSpace.values().length
+            ? ColorSpace.values()[colorSpaceOrdinal] : ColorSpace.UNKNOWN;
+        this.frameMarker = buffer.getInt(FRAME_MARKER_OFFSET);
+        this.restartInterval = buffer.getInt(RESTART_INTERVAL_OFFSET);
+        this.estimatedQuality = buffer.getInt(ESTIMATED_QUALITY_OFFSET);
+        this.markerCount = buffer.getInt(NUM_MARKERS_OFFSET);
+
+        int storedComponentCount = Math.min(componentCount, MAX_COMPONENTS);
+        this.componentIds = new int[storedComponentCount];
+        this.horizontalSamplingFactors = new int[storedComponentCount];
+        this.verticalSamplingFactors = new int[storedComponentCount];
+        for (int i = 0; i < storedComponentCount; i++)
+        {
+            componentIds[i] = buffer.getInt(COMPONENT_IDS_OFFSET + i * 4);
+            horizontalSamplingFactors[i] = buffer.getInt(H_SAMP_FACTORS_OFFSET + i * 4);
+            verticalSamplingFactors[i] = buffer.getInt(V_SAMP_FACTORS_OFFSET + i * 4);
+        }
+
+        List<Marker> markers = new ArrayList<>();
+        for (int i = 0; i < Math.min(markerCount, MAX_MARKERS); i++)
+        {
+            int markerOffset = MARKERS_OFFSET + i * MARKER_SIZE;
+            markers.add(new Marker(buffer.getInt(markerOffset), buffer.getInt(markerOffset + 4), buffer.getLong(markerOffset + 8)));
+        }
+        this.markers = Collections.unmodifiableList(markers);
+    }
+
+    private static String readFingerprintText(ByteBuffer buffer)
+    {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < FINGERPRINT_MAX_LENGTH; i++)
+        {
+            byte character = buffer.get(FINGERPRINT_TEXT_OFFSET + i);
+            if (character == 0)
+                break;
+            text.append((char) (character & 0xFF));
+        }
+        return text.toString();
+    }
+
+    static JPEGHeader probe(NativeImplementation nativeImpl, File file)
+    {
+        String[] errorMessage = new String[1];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SIZE).order(ByteOrder.nativeOrder());
+
+        //warnings are ignored, the reencode reports them
+        int resultCode = nativeImpl.probe(
+            /*inputFilePath*/ file.getAbsolutePath(),
+            /*input*/ null,
+            /*inputOffset*/ 0,
+            /*inputLength*/ 0,
+            /*errorMessage*/ errorMessage,
+            /*headerInfo*/ buffer
+        );
+
+        if (resultCode == EXIT_FAILURE)
+            throw new RuntimeException("Cannot read the JPEG header of "+file.getAbsolutePath()+"\n\n"+errorMessage[0]);
+
+        return new JPEGHeader(buffer);
+    }
+
+    //the bytes between position and limit. Direct buffers are read in place, the position is not changed
+    static JPEGHeader probe(NativeImplementation nativeImpl, ByteBuffer input)
+    {
+        ByteBuffer directInput = input;
+        if (!input.isDirect())
+        {
+            directInput = ByteBuffer.allocateDirect(input.remaining());
+            directInput.put(input.duplicate());
+            directInput.flip();
+        }
+
+        String[] errorMessage = new String[1];
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SIZE).order(ByteOrder.nativeOrder());
+
+        int resultCode = nativeImpl.probe(
+            /*inputFilePath*/ null,
+            /*input*/ directInput,
+            /*inputOffset*/ directInput.position(),
+            /*inputLength*/ directInput.remaining(),
+            /*errorMessage*/ errorMessage,
+            /*headerInfo*/ buffer
+        );
+
+        if (resultCode == EXIT_FAILURE)
+            throw new RuntimeException("Cannot read the JPEG header\n\n"+errorMessage[0]);
+
+        return new JPEGHeader(buffer);
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    //1 for grayscale, 3 for YCbCr / RGB, 4 for CMYK / YCCK
+    public int getComponentCount()
+    {
+        return componentCount;
+    }
+
+    //component id from the SOF marker (usually 1, 2, 3), by component index
+    public int getComponentId(int component)
+    {
+        return componentIds[component];
+    }
+
+    //for instance 2 for the luminance and 1 for the chrominance components of a 4:2:0 image
+    public int getHorizontalSamplingFactor(int component)
+    {
+        return horizontalSamplingFactors[component];
+    }
+
+    public int getVerticalSamplingFactor(int component)
+    {
+        return verticalSamplingFactors[component];
+    }
+
+    //deduced by libjpeg from the JFIF / Adobe markers and the component ids
+    public ColorSpace getColorSpace()
+    {
+        return colorSpace;
+    }
+
+    //baseline sequential (SOF0): 8 bit, Huffman coded, readable by any decoder
+    public boolean isBaseline()
+    {
+        return frameMarker == SOF0_MARKER;
+    }
+
+    public boolean isProgressive()
+    {
+        return progressive;
+    }
+
+    public boolean isArithmetic()
+    {
+        return arithmetic;
+    }
+
+    //in MCUs, 0 if there are no restart markers
+    public int getRestartInterval()
+    {
+        return restartInterval;
+    }
+
+    //1..100, the IJG (libjpeg, cjpeg) quality whose quantization tables are the closest to the image tables.
+    //-1 if unknown. Images from other encoders (mozjpeg default tables, camera firmwares) only get an approximation
+    public int getEstimatedQuality()
+    {
+        return estimatedQuality;
+    }
+
+    //Huffman tables built from the image statistics (optimize), instead of the example tables of the JPEG specification.
+    //in a progressive image, only the tables defined before the first scan are known
+    public boolean hasOptimizedHuffmanTables()
+    {
+        return optimizedHuffmanTables;
+    }
+
+    //the image was already reencoded by this library, with JPEGReencodeArgs.skipAlreadyOptimized
+    public boolean hasFingerprint()
+    {
+        return fingerprint;
+    }
+
+    //for instance "Reencoded by ro.andob.jpegturbo (mozjpeg 2.1.4, progressive, optimized)": the library and the options
+    //of that reencode. Null if there is no fingerprint
+    public String getFingerprint()
+    {
+        return fingerprintText;
+    }
+
+    //markers from SOI up to the first SOS, in file order. Only the first 64 are listed, see getMarkerCount
+    public List<Marker> getMarkers()
+    {
+        return markers;
+    }
+
+    public int getMarkerCount()
+    {
+        return markerCount;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder("JPEGHeader{");
+        builder.append("width=").append(width);
+        builder.append(", height=").append(height);
+        builder.append(", colorSpace=").append(colorSpace);
+        builder.append(", samplingFactors=");
+        for (int i = 0; i < componentIds.length; i++)
+            builder.append(i > 0 ? "," : "").append(horizontalSamplingFactors[i]).append('x').append(verticalSamplingFactors[i]);
+        builder.append(", baseline=").append(isBaseline());
+        builder.append(", progressive=").append(progressive);
+        builder.append(", arithmetic=").append(arithmetic);
+        builder.append(", restartInterval=").append(restartInterval);
+        builder.append(", estimatedQuality=").append(estimatedQuality);
+        builder.append(", markers=").append(markers);
+        if (markerCount > markers.size())
+            builder.append(" (").append(markerCount - markers.size()).append(" more)");
+        return builder.append('}').toString();
+    }
+
+    public static final class Marker
+    {
+        private final int code;
+        private final int length;
+        private final long offset;
+
+        private Marker(int code, int length, long offset)
+        {
+            this.code = code;
+            this.length = length;
+            this.offset = offset;
+        }
+
+        //the second byte of the marker, for instance 0xE1 for APP1
+        public int getCode()
+        {
+            return code;
+        }
+
+        //SOI, APP0..APP15, DQT, DHT, SOF0..SOF15, DRI, COM, SOS...
+        public String getName()
+        {
+            if (code == 0xD8) return "SOI";
+            if (code == 0xD9) return "EOI";
+            if (code == 0xDA) return "SOS";
+            if (code == 0xDB) return "DQT";
+            if (code == 0xDD) return "DRI";
+            if (code == 0xC4) return "DHT";
+            if (code == 0xCC) return "DAC";
+            if (code == 0xFE) return "COM";
+            if (code >= 0xC0 && code <= 0xCF && code != 0xC8) return "SOF"+(code - 0xC0);
+            if (code >= 0xD0 && code <= 0xD7) return "RST"+(code - 0xD0);
+            if (code >= 0xE0 && code <= 0xEF) return "APP"+(code - 0xE0);
+            return String.format("0x%02X", code);
+        }
+
+        //of the segment, including the 2 length bytes, without the marker itself. 0 for SOI, EOI, RSTn
+        public int getLength()
+        {
+            return length;
+        }
+
+        //of the 0xFF byte of the marker, from the start of the image
+        public long getOffset()
+        {
+            return offset;
+        }
+
+        @Override
+        public String toString()
+        {
+            return getName()+"@"+offset+"("+length+")";
+        }
+    }
+}
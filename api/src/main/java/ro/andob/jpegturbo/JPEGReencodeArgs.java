@@ -1,8 +1,11 @@
 package ro.andob.jpegturbo;
 
 import android.content.Context;
+import android.os.CancellationSignal;
 import java.io.File;
+import java.time.Duration;
 import java.util.Objects;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 
 public final class JPEGReencodeArgs
@@ -13,9 +16,27 @@ public final class JPEGReencodeArgs
     private boolean progressive = false;
     private boolean optimize = false;
     private boolean verbose = false;
+    private int traceBufferSize = ReencodeControl.DEFAULT_TRACE_BUFFER_SIZE;
+    private Consumer<String> traceListener = null;
     private boolean shouldThrowOnError = true;
     private Consumer<Throwable> errorLogger = Throwable::printStackTrace;
     private Consumer<Throwable> warningLogger = Throwable::printStackTrace;
+    private Executor pipeExecutor = FileIOUtils.DEFAULT_PIPE_EXECUTOR;
+    private File scratchDirectory = null;
+    private boolean inMemoryScratch = false;
+    private boolean fsync = false;
+    private int minSavingPercent = -1;
+    private boolean skipAlreadyOptimized = false;
+    private ReencodeCache cache = null;
+    private MozjpegOptions mozjpegOptions = null;
+    private Consumer<ReencodeProgress> progressListener = null;
+    private Duration progressInterval = ReencodeControl.DEFAULT_PROGRESS_INTERVAL;
+    private CancellationSignal cancellationSignal = null;
+    private Duration timeout = null;
+    private int maxScans = 0;
+    private long maxPixels = 0;
+    private long maxMemoryBytes = 0;
+    private ReencodeMetrics metrics = null;
 
     private JPEGReencodeArgs(Context context)
     {
@@ -64,6 +85,25 @@ public final class JPEGReencodeArgs
         return this;
     }
 
+    //the trace is kept in a native ring buffer, only its last traceBufferSize bytes are kept
+    public JPEGReencodeArgs verbose(int traceBufferSize)
+    {
+        if (traceBufferSize < ReencodeControl.MIN_TRACE_BUFFER_SIZE)
+            throw new IllegalArgumentException("Invalid trace buffer size: "+traceBufferSize);
+        this.verbose = true;
+        this.traceBufferSize = traceBufferSize;
+        return this;
+    }
+
+    //implies verbose. Called with each trace line on the reencoding thread, at most once per progress interval
+    //with the lines collected since the last call. Lines overwritten in the meantime are reported as a single line
+    public JPEGReencodeArgs traceListener(Consumer<String> traceListener)
+    {
+        this.verbose = true;
+        this.traceListener = Objects.requireNonNull(traceListener);
+        return this;
+    }
+
     public JPEGReencodeArgs shouldNotThrowOnError()
     {
         this.shouldThrowOnError = false;
@@ -82,6 +122,133 @@ public final class JPEGReencodeArgs
         return this;
     }
 
+    //runs the pipe pump tasks of file mode, a pump not started within 100ms is moved to a dedicated thread
+    public JPEGReencodeArgs pipeExecutor(Executor pipeExecutor)
+    {
+        this.pipeExecutor = Objects.requireNonNull(pipeExecutor);
+        return this;
+    }
+
+    //directory of the pipe files used in file mode, instead of the cache dir. For instance a tmpfs mount
+    public JPEGReencodeArgs scratchDirectory(File scratchDirectory)
+    {
+        this.scratchDirectory = Objects.requireNonNull(scratchDirectory);
+        return this;
+    }
+
+    //file mode opens the input and output files and passes their file descriptors to the native side,
+    //instead of streaming the input through a pipe file: nothing is created on disk, no pump task runs
+    public JPEGReencodeArgs inMemoryScratch()
+    {
+        this.inMemoryScratch = true;
+        return this;
+    }
+
+    //file mode: if the output is not at least minSavingPercent smaller than the input, the original is kept.
+    //encoding stops as soon as the output gets over that size, the result reports isOriginalKept()
+    public JPEGReencodeArgs keepSmaller(int minSavingPercent)
+    {
+        if (minSavingPercent < 0 || minSavingPercent >= 100)
+            throw new IllegalArgumentException("Invalid min saving percent: "+minSavingPercent);
+        this.minSavingPercent = minSavingPercent;
+        return this;
+    }
+
+    //file mode: the JPEG header is probed first, the reencode is skipped (and the original kept) if the image
+    //was already reencoded by this library with the same backend and options (a fingerprint of other ones is reencoded), or,
+    //for other images, if it cannot get smaller: arithmetic coded, progressive (unless mozjpeg's scan search runs), or with
+    //optimized Huffman tables when the output is not progressive.
+    //the result reports isSkipped(). Outputs are marked with a COM marker fingerprint, naming the backend and the options,
+    //in every mode, so that they are recognized on the next run
+    public JPEGReencodeArgs skipAlreadyOptimized()
+    {
+        this.skipAlreadyOptimized = true;
+        return this;
+    }
+
+    //file mode: results are looked up in and added to the cache, by a hash of the input content and the options.
+    //a hit copies the cached output (or keeps the original if the cached result is "no gain"), see ReencodeResult.isFromCache()
+    public JPEGReencodeArgs cache(ReencodeCache cache)
+    {
+        this.cache = Objects.requireNonNull(cache);
+        return this;
+    }
+
+    //Mozjpeg only: scan optimization and profile, for instance MozjpegOptions.preset("fastest") on low end devices.
+    //read when the reencode starts, ignored by the other backends
+    public JPEGReencodeArgs mozjpegOptions(MozjpegOptions mozjpegOptions)
+    {
+        this.mozjpegOptions = Objects.requireNonNull(mozjpegOptions);
+        return this;
+    }
+
+    //file mode: the output is flushed to the storage device before returning. In place, before replacing the original
+    public JPEGReencodeArgs fsync()
+    {
+        this.fsync = true;
+        return this;
+    }
+
+    public JPEGReencodeArgs progressListener(Consumer<ReencodeProgress> progressListener)
+    {
+        this.progressListener = Objects.requireNonNull(progressListener);
+        return this;
+    }
+
+    public JPEGReencodeArgs progressListener(Consumer<ReencodeProgress> progressListener, Duration progressInterval)
+    {
+        if (progressInterval.isNegative())
+            throw new IllegalArgumentException("Invalid progress interval: "+progressInterval);
+        this.progressListener = Objects.requireNonNull(progressListener);
+        this.progressInterval = progressInterval;
+        return this;
+    }
+
+    public JPEGReencodeArgs cancellationSignal(CancellationSignal cancellationSignal)
+    {
+        this.cancellationSignal = Objects.requireNonNull(cancellationSignal);
+        return this;
+    }
+
+    public JPEGReencodeArgs timeout(Duration timeout)
+    {
+        if (timeout.isNegative() || timeout.isZero())
+            throw new IllegalArgumentException("Invalid timeout: "+timeout);
+        this.timeout = timeout;
+        return this;
+    }
+
+    public JPEGReencodeArgs maxScans(int maxScans)
+    {
+        if (maxScans <= 0)
+            throw new IllegalArgumentException("Invalid max scans: "+maxScans);
+        this.maxScans = maxScans;
+        return this;
+    }
+
+    public JPEGReencodeArgs maxPixels(long maxPixels)
+    {
+        if (maxPixels <= 0)
+            throw new IllegalArgumentException("Invalid max pixels: "+maxPixels);
+        this.maxPixels = maxPixels;
+        return this;
+    }
+
+    public JPEGReencodeArgs maxMemoryBytes(long maxMemoryBytes)
+    {
+        if (maxMemoryBytes <= 0)
+            throw new IllegalArgumentException("Invalid max memory bytes: "+maxMemoryBytes);
+        this.maxMemoryBytes = maxMemoryBytes;
+        return this;
+    }
+
+    //called in addition to the globally registered metrics
+    public JPEGReencodeArgs metrics(ReencodeMetrics metrics)
+    {
+        this.metrics = Objects.requireNonNull(metrics);
+        return this;
+    }
+
     Context getContext()
     {
         return context;
@@ -118,6 +285,16 @@ public final class JPEGReencodeArgs
         return verbose;
     }
 
+    int getTraceBufferSize()
+    {
+        return traceBufferSize;
+    }
+
+    Consumer<String> getTraceListener()
+    {
+        return traceListener;
+    }
+
     boolean shouldThrowOnError()
     {
         return shouldThrowOnError;
@@ -137,13 +314,95 @@ public final class JPEGReencodeArgs
         return warningLogger;
     }
 
+    Executor getPipeExecutor()
+    {
+        return pipeExecutor;
+    }
+
+    File getScratchDirectory()
+    {
+        return scratchDirectory != null ? scratchDirectory : context.getCacheDir();
+    }
+
+    boolean isInMemoryScratch()
+    {
+        return inMemoryScratch;
+    }
+
+    //-1 if keepSmaller is not used
+    int getMinSavingPercent()
+    {
+        return minSavingPercent;
+    }
+
+    boolean shouldSkipAlreadyOptimized()
+    {
+        return skipAlreadyOptimized;
+    }
+
+    ReencodeCache getCache()
+    {
+        return cache;
+    }
+
+    MozjpegOptions getMozjpegOptions()
+    {
+        return mozjpegOptions;
+    }
+
+    boolean shouldFsync()
+    {
+        return fsync;
+    }
+
+    Consumer<ReencodeProgress> getProgressListener()
+    {
+        return progressListener;
+    }
+
+    Duration getProgressInterval()
+    {
+        return progressInterval;
+    }
+
+    CancellationSignal getCancellationSignal()
+    {
+        return cancellationSignal;
+    }
+
+    Duration getTimeout()
+    {
+        return timeout;
+    }
+
+    int getMaxScans()
+    {
+        return maxScans;
+    }
+
+    long getMaxPixels()
+    {
+        return maxPixels;
+    }
+
+    long getMaxMemoryBytes()
+    {
+        return maxMemoryBytes;
+    }
+
+    ReencodeMetrics getMetrics()
+    {
+        return metrics;
+    }
+
     @Override
     public String toString()
     {
-        return "inputFile=" + inputFile.getAbsolutePath() +
-            "\noutputFile=" + outputFile.getAbsolutePath() +
+        return "inputFile=" + (inputFile != null ? inputFile.getAbsolutePath() : null) +
+            "\noutputFile=" + (outputFile != null ? outputFile.getAbsolutePath() : null) +
             "\nprogressive=" + progressive +
             "\noptimize=" + optimize +
-            "\nverbose=" + verbose;
+            "\nverbose=" + verbose +
+            (mozjpegOptions != null ? "\nmozjpegOptions=" + mozjpegOptions : "");
     }
 }
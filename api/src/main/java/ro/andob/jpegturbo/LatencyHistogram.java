@@ -0,0 +1,108 @@
+package ro.andob.jpegturbo;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+//HDR-style log-linear histogram of durations, in microseconds. Each power of two range is split into
+//64 linear sub-buckets, so any recorded value is reported with less than 1.6% relative error.
+//recording is lock-free (one atomic increment), reading does not block recording
+public final class LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    //2^36 microseconds is about 19 hours, longer durations are clamped
+    private static final long MAX_VALUE_MICROS = (1L << 36) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(getBucketIndex(MAX_VALUE_MICROS) + 1);
+    private final AtomicLong totalCount = new AtomicLong(0);
+    private final AtomicLong maxValueMicros = new AtomicLong(0);
+
+    LatencyHistogram() {}
+
+    void record(long nanos)
+    {
+        long micros = Math.max(0, Math.min(MAX_VALUE_MICROS, nanos / 1000));
+        counts.incrementAndGet(getBucketIndex(micros));
+        totalCount.incrementAndGet();
+
+        long max;
+        while (micros > (max = maxValueMicros.get()) && !maxValueMicros.compareAndSet(max, micros)) {}
+    }
+
+    private static int getBucketIndex(long micros)
+    {
+        if (micros < SUB_BUCKET_COUNT)
+            return (int) micros;
+
+        //keep the 7 most significant bits of the value, the exponent selects the power of two range
+        int exponent = 63 - Long.numberOfLeadingZeros(micros) - (SUB_BUCKET_BITS - 1);
+        return exponent * SUB_BUCKET_HALF_COUNT + (int) (micros >>> exponent);
+    }
+
+    //highest value that falls into the bucket
+    private static long getBucketMaxValue(int bucketIndex)
+    {
+        if (bucketIndex < SUB_BUCKET_COUNT)
+            return bucketIndex;
+
+        int exponent = bucketIndex / SUB_BUCKET_HALF_COUNT - 1;
+        long subBucket = bucketIndex % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << exponent) - 1;
+    }
+
+    public long getCount()
+    {
+        return totalCount.get();
+    }
+
+    public Duration getMax()
+    {
+        return Duration.ofNanos(maxValueMicros.get() * 1000);
+    }
+
+    //percentile between 0 and 100. Duration.ZERO if nothing was recorded
+    public Duration getValueAtPercentile(double percentile)
+    {
+        if (percentile < 0 || percentile > 100)
+            throw new IllegalArgumentException("Invalid percentile: "+percentile);
+
+        //counts are read one by one while other threads may record, the result is approximate by design
+        long count = totalCount.get();
+        if (count == 0)
+            return Duration.ZERO;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int bucketIndex = 0; bucketIndex < counts.length(); bucketIndex++)
+        {
+            seen += counts.get(bucketIndex);
+            if (seen >= rank)
+                return Duration.ofNanos(Math.min(getBucketMaxValue(bucketIndex), maxValueMicros.get()) * 1000);
+        }
+
+        return getMax();
+    }
+
+    public Duration getP50()
+    {
+        return getValueAtPercentile(50);
+    }
+
+    public Duration getP99()
+    {
+        return getValueAtPercentile(99);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LatencyHistogram{" +
+            "count=" + getCount() +
+            ", p50=" + getP50().toNanos() / 1000 + "us" +
+            ", p99=" + getP99().toNanos() / 1000 + "us" +
+            ", max=" + getMax().toNanos() / 1000 + "us" +
+            '}';
+    }
+}
@@ -1,9 +1,85 @@
 package ro.andob.jpegturbo;
 
+import android.os.ParcelFileDescriptor;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 public final class Mozjpeg
 {
-    public static void reencode(JPEGReencodeArgs args)
+    public static ReencodeResult reencode(JPEGReencodeArgs args)
+    {
+        return Reencoder.reencode(NativeImplementation.mozjpeg(), args);
+    }
+
+    public static byte[] reencode(byte[] input, JPEGReencodeArgs args)
+    {
+        return Reencoder.reencode(NativeImplementation.mozjpeg(), input, 0, input.length, args);
+    }
+
+    public static ByteBuffer reencode(ByteBuffer input, JPEGReencodeArgs args)
+    {
+        return Reencoder.reencode(NativeImplementation.mozjpeg(), input, args);
+    }
+
+    public static int reencode(ByteBuffer input, ByteBuffer output, JPEGReencodeArgs args)
+    {
+        return Reencoder.reencode(NativeImplementation.mozjpeg(), input, output, args);
+    }
+
+    public static ReencodeResult reencode(ParcelFileDescriptor input, ParcelFileDescriptor output, JPEGReencodeArgs args)
+    {
+        return Reencoder.reencode(NativeImplementation.mozjpeg(), input, output, args);
+    }
+
+    public static ReencodeResult reencode(FileDescriptor input, FileDescriptor output, JPEGReencodeArgs args)
+    {
+        return Reencoder.reencode(NativeImplementation.mozjpeg(), input, output, args);
+    }
+
+    public static ReencodeResult reencode(InputStream input, OutputStream output, JPEGReencodeArgs args)
+    {
+        return Reencoder.reencode(NativeImplementation.mozjpeg(), input, output, args);
+    }
+
+    public static CompletableFuture<ReencodeResult> reencodeAsync(JPEGReencodeArgs args)
+    {
+        return AsyncReencoder.reencode(NativeImplementation.mozjpeg(), args, AsyncReencoder.DEFAULT_EXECUTOR);
+    }
+
+    public static CompletableFuture<ReencodeResult> reencodeAsync(JPEGReencodeArgs args, Executor executor)
+    {
+        return AsyncReencoder.reencode(NativeImplementation.mozjpeg(), args, executor);
+    }
+
+    public static BatchReencodeResult reencodeAll(List<JPEGReencodeArgs> argsList)
+    {
+        return BatchReencoder.reencodeAll(NativeImplementation.mozjpeg(), argsList, BatchReencoder.defaultParallelism());
+    }
+
+    public static BatchReencodeResult reencodeAll(List<JPEGReencodeArgs> argsList, int parallelism)
+    {
+        return BatchReencoder.reencodeAll(NativeImplementation.mozjpeg(), argsList, parallelism);
+    }
+
+    //reads only the JPEG header, nothing is decoded. Throws if the header cannot be read
+    public static JPEGHeader probe(File file)
+    {
+        return JPEGHeader.probe(NativeImplementation.mozjpeg(), file);
+    }
+
+    public static JPEGHeader probe(ByteBuffer input)
+    {
+        return JPEGHeader.probe(NativeImplementation.mozjpeg(), input);
+    }
+
+    public static ReencodeSession openSession()
     {
-        Reencoder.reencode(NativeImplementation.mozjpeg(), args);
+        return new ReencodeSession(NativeImplementation.mozjpeg());
     }
 }
@@ -0,0 +1,160 @@
+package ro.andob.jpegturbo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+//mozjpeg extensions that apply to a lossless reencode, see set_mozjpeg_options in Bindings.c. Ignored by the other backends.
+//without options, mozjpeg uses its defaults: the MAX_COMPRESSION profile, with scan optimization.
+//trellis quantization (JBOOLEAN_TRELLIS_QUANT, JINT_TRELLIS_NUM_LOOPS...) is not here: it picks new quantized coefficients
+//from the pixels, while reencoding copies the coefficients as they are
+//the presets trade time for size, how much depends on the image
+//usage: Mozjpeg.reencode(args.optimize().mozjpegOptions(MozjpegOptions.preset("balanced")))
+public final class MozjpegOptions
+{
+    public enum Profile
+    {
+        //libjpeg-turbo defaults: baseline unless JPEGReencodeArgs.progressive, standard progressive scan script,
+        //Huffman optimization only with JPEGReencodeArgs.optimize
+        FASTEST,
+        //always progressive, with mozjpeg's scan script and Huffman optimization
+        MAX_COMPRESSION
+    }
+
+    //how the DC coefficients are split into progressive scans, mozjpeg's JINT_DC_SCAN_OPT_MODE
+    public enum DCScanMode
+    {
+        //a single DC scan for all the components (mozjpeg's default)
+        ALL_COMPONENTS,
+        //a DC scan for each component (cjpeg's default)
+        PER_COMPONENT,
+        //a DC scan for luminance, then the chroma DC scans combined or separate, whichever is smaller with optimizeScans
+        LUMINANCE_THEN_CHROMA
+    }
+
+    public static final String PRESET_FASTEST = "fastest";
+    public static final String PRESET_BALANCED = "balanced";
+    public static final String PRESET_MAX_COMPRESSION = "max-compression";
+
+    private Profile profile = Profile.MAX_COMPRESSION;
+    private boolean optimizeScans = true;
+    private DCScanMode dcScanMode = DCScanMode.ALL_COMPONENTS;
+
+    private MozjpegOptions() {}
+
+    //mozjpeg defaults, to be changed with the setters below
+    public static MozjpegOptions defaults()
+    {
+        return new MozjpegOptions();
+    }
+
+    //the same encoding as JPEG-Turbo: a single entropy coding pass (two with optimize), baseline unless progressive
+    public static MozjpegOptions fastest()
+    {
+        return new MozjpegOptions()
+            .profile(Profile.FASTEST)
+            .optimizeScans(false);
+    }
+
+    //progressive with mozjpeg's fixed scan script and a DC scan per component, no scan search:
+    //each scan is entropy coded once
+    public static MozjpegOptions balanced()
+    {
+        return new MozjpegOptions()
+            .profile(Profile.MAX_COMPRESSION)
+            .optimizeScans(false)
+            .dcScanMode(DCScanMode.PER_COMPONENT);
+    }
+
+    //searches the smallest progressive scan script, with a DC scan per component: each candidate scan is entropy coded
+    public static MozjpegOptions maxCompression()
+    {
+        return new MozjpegOptions()
+            .profile(Profile.MAX_COMPRESSION)
+            .optimizeScans(true)
+            .dcScanMode(DCScanMode.PER_COMPONENT);
+    }
+
+    //"fastest", "balanced" or "max-compression", for instance read from a per device class configuration
+    public static MozjpegOptions preset(String name)
+    {
+        switch (Objects.requireNonNull(name))
+        {
+            case PRESET_FASTEST: return fastest();
+            case PRESET_BALANCED: return balanced();
+            case PRESET_MAX_COMPRESSION: return maxCompression();
+            default: throw new IllegalArgumentException("Invalid mozjpeg preset: "+name);
+        }
+    }
+
+    public MozjpegOptions profile(Profile profile)
+    {
+        this.profile = Objects.requireNonNull(profile);
+        return this;
+    }
+
+    //progressive scan search, mozjpeg's JBOOLEAN_OPTIMIZE_SCANS. Only applies to progressive outputs
+    public MozjpegOptions optimizeScans(boolean optimizeScans)
+    {
+        this.optimizeScans = optimizeScans;
+        return this;
+    }
+
+    public MozjpegOptions dcScanMode(DCScanMode dcScanMode)
+    {
+        this.dcScanMode = Objects.requireNonNull(dcScanMode);
+        return this;
+    }
+
+    Profile getProfile()
+    {
+        return profile;
+    }
+
+    boolean shouldOptimizeScans()
+    {
+        return optimizeScans;
+    }
+
+    DCScanMode getDCScanMode()
+    {
+        return dcScanMode;
+    }
+
+    //same names as write_fingerprint in Bindings.c
+    List<String> getFingerprintFlags()
+    {
+        List<String> flags = new ArrayList<>();
+        flags.add(profile == Profile.FASTEST ? "fastest profile" : "max-compression profile");
+        if (optimizeScans)
+            flags.add("scan search");
+        if (dcScanMode == DCScanMode.ALL_COMPONENTS)
+            flags.add("all-components DC scans");
+        else if (dcScanMode == DCScanMode.PER_COMPONENT)
+            flags.add("per-component DC scans");
+        else flags.add("luminance-then-chroma DC scans");
+        return flags;
+    }
+
+    //mozjpeg's scan search runs: it may find a smaller progressive script, even for an already progressive input
+    boolean searchesScans()
+    {
+        return profile == Profile.MAX_COMPRESSION && optimizeScans;
+    }
+
+    //the max compression profile writes progressive JPEGs, whatever JPEGReencodeArgs.progressive says
+    boolean isAlwaysProgressive()
+    {
+        return profile == Profile.MAX_COMPRESSION;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "MozjpegOptions{" +
+            "profile=" + profile +
+            ", optimizeScans=" + optimizeScans +
+            ", dcScanMode=" + dcScanMode +
+            '}';
+    }
+}
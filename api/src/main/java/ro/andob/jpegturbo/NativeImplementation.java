@@ -1,15 +1,36 @@
 package ro.andob.jpegturbo;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import org.jetbrains.annotations.NotNull;
 
 interface NativeImplementation
 {
-    int reencode(String inputFilePath, String outputFilePath, String errorFilePath, boolean progressive, boolean optimize, boolean verbose);
+    int reencode(String inputFilePath, String outputFilePath, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose);
 
-    void mergeExifAndJpeg(String inputExifFilePath, String inputImageFilePath, String outputFilePath);
+    int reencodeByteArray(long sessionHandle, byte[] input, int inputOffset, int inputLength, byte[][] output, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose);
+
+    int reencodeDirectByteBuffer(long sessionHandle, ByteBuffer input, int inputOffset, int inputLength, ByteBuffer output, int outputOffset, int outputCapacity, int[] outputSize, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose);
+
+    int reencodeFileDescriptor(int inputFileDescriptor, int outputFileDescriptor, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose);
+
+    int reencodeStream(InputStream input, OutputStream output, byte[] buffer, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose);
+
+    long createSession();
+
+    void destroySession(long sessionHandle);
 
     int createPipeFile(String pipeFilePath);
 
+    int probe(String inputFilePath, ByteBuffer input, int inputOffset, int inputLength, String[] errorMessage, ByteBuffer headerInfo);
+
+    //the NATIVE_LIBRARY_NAME of the bindings module, which names the backend in the fingerprint
+    String getLibraryName();
+
+    //MozjpegOptions apply, the other backends ignore them
+    boolean hasMozjpegExtensions();
+
     static NativeImplementation jpegTurbo()
     {
         try { Class.forName(JPEGTurboNative.class.getName()); }
@@ -18,15 +39,45 @@ interface NativeImplementation
         return new NativeImplementation()
         {
             @Override
-            public int reencode(String inputFilePath, String outputFilePath, String errorFilePath, boolean progressive, boolean optimize, boolean verbose)
+            public int reencode(String inputFilePath, String outputFilePath, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose)
+            {
+                return JPEGTurboNative.reencode(inputFilePath, outputFilePath, errorMessage, control, progressCallback, progressive, optimize, verbose);
+            }
+
+            @Override
+            public int reencodeByteArray(long sessionHandle, byte[] input, int inputOffset, int inputLength, byte[][] output, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose)
+            {
+                return JPEGTurboNative.reencodeByteArray(sessionHandle, input, inputOffset, inputLength, output, errorMessage, control, progressCallback, progressive, optimize, verbose);
+            }
+
+            @Override
+            public int reencodeDirectByteBuffer(long sessionHandle, ByteBuffer input, int inputOffset, int inputLength, ByteBuffer output, int outputOffset, int outputCapacity, int[] outputSize, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose)
+            {
+                return JPEGTurboNative.reencodeDirectByteBuffer(sessionHandle, input, inputOffset, inputLength, output, outputOffset, outputCapacity, outputSize, errorMessage, control, progressCallback, progressive, optimize, verbose);
+            }
+
+            @Override
+            public int reencodeFileDescriptor(int inputFileDescriptor, int outputFileDescriptor, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose)
+            {
+                return JPEGTurboNative.reencodeFileDescriptor(inputFileDescriptor, outputFileDescriptor, errorMessage, control, progressCallback, progressive, optimize, verbose);
+            }
+
+            @Override
+            public int reencodeStream(InputStream input, OutputStream output, byte[] buffer, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose)
+            {
+                return JPEGTurboNative.reencodeStream(input, output, buffer, errorMessage, control, progressCallback, progressive, optimize, verbose);
+            }
+
+            @Override
+            public long createSession()
             {
-                return JPEGTurboNative.reencode(inputFilePath, outputFilePath, errorFilePath, progressive, optimize, verbose);
+                return JPEGTurboNative.createSession();
             }
 
             @Override
-            public void mergeExifAndJpeg(String inputExifFilePath, String inputImageFilePath, String outputFilePath)
+            public void destroySession(long sessionHandle)
             {
-                JPEGTurboNative.mergeExifAndJpeg(inputExifFilePath, inputImageFilePath, outputFilePath);
+                JPEGTurboNative.destroySession(sessionHandle);
             }
 
             @Override
@@ -35,6 +86,24 @@ interface NativeImplementation
                 return JPEGTurboNative.createPipeFile(pipeFilePath);
             }
 
+            @Override
+            public int probe(String inputFilePath, ByteBuffer input, int inputOffset, int inputLength, String[] errorMessage, ByteBuffer headerInfo)
+            {
+                return JPEGTurboNative.probe(inputFilePath, input, inputOffset, inputLength, errorMessage, headerInfo);
+            }
+
+            @Override
+            public String getLibraryName()
+            {
+                return JPEGTurboNative.getLibraryName();
+            }
+
+            @Override
+            public boolean hasMozjpegExtensions()
+            {
+                return false;
+            }
+
             @Override
             public @NotNull String toString()
             {
@@ -51,15 +120,45 @@ interface NativeImplementation
         return new NativeImplementation()
         {
             @Override
-            public int reencode(String inputFilePath, String outputFilePath, String errorFilePath, boolean progressive, boolean optimize, boolean verbose)
+            public int reencode(String inputFilePath, String outputFilePath, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose)
+            {
+                return MozjpegNative.reencode(inputFilePath, outputFilePath, errorMessage, control, progressCallback, progressive, optimize, verbose);
+            }
+
+            @Override
+            public int reencodeByteArray(long sessionHandle, byte[] input, int inputOffset, int inputLength, byte[][] output, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose)
+            {
+                return MozjpegNative.reencodeByteArray(sessionHandle, input, inputOffset, inputLength, output, errorMessage, control, progressCallback, progressive, optimize, verbose);
+            }
+
+            @Override
+            public int reencodeDirectByteBuffer(long sessionHandle, ByteBuffer input, int inputOffset, int inputLength, ByteBuffer output, int outputOffset, int outputCapacity, int[] outputSize, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose)
+            {
+                return MozjpegNative.reencodeDirectByteBuffer(sessionHandle, input, inputOffset, inputLength, output, outputOffset, outputCapacity, outputSize, errorMessage, control, progressCallback, progressive, optimize, verbose);
+            }
+
+            @Override
+            public int reencodeFileDescriptor(int inputFileDescriptor, int outputFileDescriptor, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose)
             {
-                return MozjpegNative.reencode(inputFilePath, outputFilePath, errorFilePath, progressive, optimize, verbose);
+                return MozjpegNative.reencodeFileDescriptor(inputFileDescriptor, outputFileDescriptor, errorMessage, control, progressCallback, progressive, optimize, verbose);
             }
 
             @Override
-            public void mergeExifAndJpeg(String inputExifFilePath, String inputImageFilePath, String outputFilePath)
+            public int reencodeStream(InputStream input, OutputStream output, byte[] buffer, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose)
             {
-                MozjpegNative.mergeExifAndJpeg(inputExifFilePath, inputImageFilePath, outputFilePath);
+                return MozjpegNative.reencodeStream(input, output, buffer, errorMessage, control, progressCallback, progressive, optimize, verbose);
+            }
+
+            @Override
+            public long createSession()
+            {
+                return MozjpegNative.createSession();
+            }
+
+            @Override
+            public void destroySession(long sessionHandle)
+            {
+                MozjpegNative.destroySession(sessionHandle);
             }
 
             @Override
@@ -68,6 +167,24 @@ interface NativeImplementation
                 return MozjpegNative.createPipeFile(pipeFilePath);
             }
 
+            @Override
+            public int probe(String inputFilePath, ByteBuffer input, int inputOffset, int inputLength, String[] errorMessage, ByteBuffer headerInfo)
+            {
+                return MozjpegNative.probe(inputFilePath, input, inputOffset, inputLength, errorMessage, headerInfo);
+            }
+
+            @Override
+            public String getLibraryName()
+            {
+                return MozjpegNative.getLibraryName();
+            }
+
+            @Override
+            public boolean hasMozjpegExtensions()
+            {
+                return true;
+            }
+
             @Override
             public @NotNull String toString()
             {
@@ -84,15 +201,45 @@ interface NativeImplementation
         return new NativeImplementation()
         {
             @Override
-            public int reencode(String inputFilePath, String outputFilePath, String errorFilePath, boolean progressive, boolean optimize, boolean verbose)
+            public int reencode(String inputFilePath, String outputFilePath, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose)
+            {
+                return JpegliNative.reencode(inputFilePath, outputFilePath, errorMessage, control, progressCallback, progressive, optimize, verbose);
+            }
+
+            @Override
+            public int reencodeByteArray(long sessionHandle, byte[] input, int inputOffset, int inputLength, byte[][] output, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose)
+            {
+                return JpegliNative.reencodeByteArray(sessionHandle, input, inputOffset, inputLength, output, errorMessage, control, progressCallback, progressive, optimize, verbose);
+            }
+
+            @Override
+            public int reencodeDirectByteBuffer(long sessionHandle, ByteBuffer input, int inputOffset, int inputLength, ByteBuffer output, int outputOffset, int outputCapacity, int[] outputSize, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose)
+            {
+                return JpegliNative.reencodeDirectByteBuffer(sessionHandle, input, inputOffset, inputLength, output, outputOffset, outputCapacity, outputSize, errorMessage, control, progressCallback, progressive, optimize, verbose);
+            }
+
+            @Override
+            public int reencodeFileDescriptor(int inputFileDescriptor, int outputFileDescriptor, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose)
+            {
+                return JpegliNative.reencodeFileDescriptor(inputFileDescriptor, outputFileDescriptor, errorMessage, control, progressCallback, progressive, optimize, verbose);
+            }
+
+            @Override
+            public int reencodeStream(InputStream input, OutputStream output, byte[] buffer, String[] errorMessage, ByteBuffer control, Runnable progressCallback, boolean progressive, boolean optimize, boolean verbose)
+            {
+                return JpegliNative.reencodeStream(input, output, buffer, errorMessage, control, progressCallback, progressive, optimize, verbose);
+            }
+
+            @Override
+            public long createSession()
             {
-                return JpegliNative.reencode(inputFilePath, outputFilePath, errorFilePath, progressive, optimize, verbose);
+                return JpegliNative.createSession();
             }
 
             @Override
-            public void mergeExifAndJpeg(String inputExifFilePath, String inputImageFilePath, String outputFilePath)
+            public void destroySession(long sessionHandle)
             {
-                JpegliNative.mergeExifAndJpeg(inputExifFilePath, inputImageFilePath, outputFilePath);
+                JpegliNative.destroySession(sessionHandle);
             }
 
             @Override
@@ -101,6 +248,24 @@ interface NativeImplementation
                 return JpegliNative.createPipeFile(pipeFilePath);
             }
 
+            @Override
+            public int probe(String inputFilePath, ByteBuffer input, int inputOffset, int inputLength, String[] errorMessage, ByteBuffer headerInfo)
+            {
+                return JpegliNative.probe(inputFilePath, input, inputOffset, inputLength, errorMessage, headerInfo);
+            }
+
+            @Override
+            public String getLibraryName()
+            {
+                return JpegliNative.getLibraryName();
+            }
+
+            @Override
+            public boolean hasMozjpegExtensions()
+            {
+                return false;
+            }
+
             @Override
             public @NotNull String toString()
             {
@@ -0,0 +1,258 @@
+package ro.andob.jpegturbo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//opt-in on-disk cache of file mode reencode results, keyed by a hash of the input content, the options and the backend.
+//an entry is the reencoded image, or an empty "no gain" marker if the original was kept.
+//least recently used entries are evicted when the total size goes over maxSizeBytes.
+//usage: JPEGReencodeArgs.cache(ReencodeCache.open(new File(context.getCacheDir(), "reencode"), 64 * 1024 * 1024))
+public final class ReencodeCache
+{
+    private static final String OUTPUT_SUFFIX = ".jpg";
+    private static final String NO_GAIN_SUFFIX = ".nogain";
+    //see FileIOUtils.getSiblingTempFile
+    private static final String TEMP_SUFFIX = ".tmp";
+    //each file takes at least one block on disk, this also bounds the number of "no gain" markers
+    private static final long MIN_ENTRY_SIZE = 4096;
+
+    //one instance per directory, they would not see each other's entries
+    private static final Map<File, ReencodeCache> instances = new HashMap<>();
+
+    private final File directory;
+    private long maxSizeBytes;
+    //file name -> counted size, least recently used first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, /*accessOrder*/ true);
+    private long size = 0;
+
+    private ReencodeCache(File directory, long maxSizeBytes)
+    {
+        this.directory = directory;
+        this.maxSizeBytes = maxSizeBytes;
+    }
+
+    //the same instance is returned for the same directory, with the latest maxSizeBytes
+    public static synchronized ReencodeCache open(File directory, long maxSizeBytes)
+    {
+        if (maxSizeBytes <= 0)
+            throw new IllegalArgumentException("Invalid max size: "+maxSizeBytes);
+
+        File canonicalDirectory;
+        try { canonicalDirectory = directory.getCanonicalFile(); }
+        catch (IOException ex) { throw new UncheckedIOException(ex); }
+
+        ReencodeCache cache = instances.get(canonicalDirectory);
+        if (cache == null)
+        {
+            cache = new ReencodeCache(canonicalDirectory, maxSizeBytes);
+            cache.load();
+            instances.put(canonicalDirectory, cache);
+        }
+
+        cache.setMaxSize(maxSizeBytes);
+        return cache;
+    }
+
+    //the access order is kept across restarts in the last modified time of the entries
+    private void load()
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new RuntimeException("Cannot create cache directory "+directory.getAbsolutePath());
+
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX))
+                //left by a write that did not finish
+                file.delete();
+            else if (name.endsWith(OUTPUT_SUFFIX) || name.endsWith(NO_GAIN_SUFFIX))
+                addEntry(name, file.length());
+        }
+    }
+
+    public synchronized void setMaxSize(long maxSizeBytes)
+    {
+        if (maxSizeBytes <= 0)
+            throw new IllegalArgumentException("Invalid max size: "+maxSizeBytes);
+        this.maxSizeBytes = maxSizeBytes;
+        trimToSize();
+    }
+
+    //in bytes, each entry counts at least 4KB
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    public synchronized int getEntryCount()
+    {
+        return entries.size();
+    }
+
+    public synchronized void clear()
+    {
+        for (String name : entries.keySet())
+            new File(directory, name).delete();
+        entries.clear();
+        size = 0;
+    }
+
+    //SHA-256 of the input content and the options. Fast enough next to a reencode, and unlike a CRC,
+    //a crafted image cannot collide with another one to make the cache return the wrong output
+    static String getKey(File inputFile, String options)
+    {
+        MessageDigest digest;
+        try { digest = MessageDigest.getInstance("SHA-256"); }
+        catch (NoSuchAlgorithmException ex) { throw new RuntimeException(ex); }
+
+        try (InputStream input = Files.newInputStream(inputFile.toPath()))
+        {
+            byte[] buffer = new byte[FileIOUtils.TRANSFER_BUFFER_SIZE];
+            int readBytes;
+            while ((readBytes = input.read(buffer)) != -1)
+                digest.update(buffer, 0, readBytes);
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+
+        digest.update(options.getBytes(StandardCharsets.UTF_8));
+
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest())
+            key.append(String.format("%02x", b));
+        return key.toString();
+    }
+
+    //null on a miss. The entry may be evicted by another thread at any time, reading it can fail
+    synchronized File get(String key)
+    {
+        for (String name : new String[] { key + OUTPUT_SUFFIX, key + NO_GAIN_SUFFIX })
+        {
+            if (entries.get(name) == null)
+                continue;
+
+            File file = new File(directory, name);
+            if (!file.exists())
+            {
+                //deleted from outside
+                removeEntry(name);
+                continue;
+            }
+
+            file.setLastModified(System.currentTimeMillis());
+            return file;
+        }
+
+        return null;
+    }
+
+    static boolean isNoGain(File entry)
+    {
+        return entry.getName().endsWith(NO_GAIN_SUFFIX);
+    }
+
+    void put(String key, File outputFile)
+    {
+        write(key + OUTPUT_SUFFIX, outputFile);
+    }
+
+    void putNoGain(String key)
+    {
+        write(key + NO_GAIN_SUFFIX, /*sourceFile*/ null);
+    }
+
+    //written outside of the lock into a temp file, then renamed, readers never see a partial entry
+    private void write(String name, File sourceFile)
+    {
+        File file = new File(directory, name);
+        File tempFile = FileIOUtils.getSiblingTempFile(file);
+        try
+        {
+            if (sourceFile != null)
+                FileIOUtils.copy(sourceFile, tempFile, /*fsync*/ false);
+            else if (!tempFile.createNewFile())
+                throw new IOException("Cannot create "+tempFile.getAbsolutePath());
+
+            synchronized (this)
+            {
+                //a result too big for the whole cache would only evict everything else
+                if (Math.max(MIN_ENTRY_SIZE, tempFile.length()) > maxSizeBytes)
+                {
+                    tempFile.delete();
+                    return;
+                }
+
+                FileIOUtils.replaceAtomically(tempFile, file, /*fsync*/ false);
+                removeEntry(name);
+                addEntry(name, file.length());
+                trimToSize();
+            }
+        }
+        catch (IOException ex)
+        {
+            tempFile.delete();
+            throw new UncheckedIOException(ex);
+        }
+        catch (RuntimeException ex)
+        {
+            tempFile.delete();
+            throw ex;
+        }
+    }
+
+    private void addEntry(String name, long length)
+    {
+        long countedSize = Math.max(MIN_ENTRY_SIZE, length);
+        entries.put(name, countedSize);
+        size += countedSize;
+    }
+
+    private void removeEntry(String name)
+    {
+        Long countedSize = entries.remove(name);
+        if (countedSize != null)
+            size -= countedSize;
+    }
+
+    private void trimToSize()
+    {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSizeBytes && iterator.hasNext())
+        {
+            Map.Entry<String, Long> eldest = iterator.next();
+            new File(directory, eldest.getKey()).delete();
+            size -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        return "ReencodeCache{" +
+            "directory=" + directory.getAbsolutePath() +
+            ", entries=" + entries.size() +
+            ", size=" + size +
+            ", maxSize=" + maxSizeBytes +
+            '}';
+    }
+}
@@ -0,0 +1,257 @@
+package ro.andob.jpegturbo;
+
+import android.os.CancellationSignal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.function.Consumer;
+
+//shared memory between Java and the native progress monitor, see struct reencode_control in Bindings.c.
+//the native side calls back the progress callback on the reencoding thread, so no synchronization is needed
+final class ReencodeControl
+{
+    static final Duration DEFAULT_PROGRESS_INTERVAL = Duration.ofMillis(50);
+
+    static final int CANCELLED_OFFSET = 0;
+    static final int PROGRESS_INTERVAL_MILLIS_OFFSET = 4;
+    static final int STAGE_OFFSET = 8;
+    static final int COMPLETED_PASSES_OFFSET = 12;
+    static final int TOTAL_PASSES_OFFSET = 16;
+    static final int TIMEOUT_MILLIS_OFFSET = 20;
+    static final int PASS_COUNTER_OFFSET = 24;
+    static final int PASS_LIMIT_OFFSET = 32;
+    static final int MAX_SCANS_OFFSET = 40;
+    static final int MAX_PIXELS_OFFSET = 48;
+    static final int MAX_MEMORY_BYTES_OFFSET = 56;
+    static final int NUM_WARNINGS_OFFSET = 64;
+    //wall and cpu nanos of each stage, filled in by the native side on success
+    static final int READ_TIME_OFFSET = 72;
+    static final int ENCODE_TIME_OFFSET = 88;
+    static final int MARKERS_TIME_OFFSET = 104;
+    //libjpeg msg_code values, filled in by the native error manager
+    static final int ERROR_CODE_OFFSET = 120;
+    static final int CORRUPT_DATA_WARNINGS_OFFSET = 124;
+    static final int WARNING_CODES_OFFSET = 128;
+    static final int MAX_WARNING_CODES = 8;
+    //verbose trace ring buffer, its bytes follow the struct. TRACE_WRITTEN counts every byte ever written
+    static final int TRACE_CAPACITY_OFFSET = 160;
+    static final int WRITE_FINGERPRINT_OFFSET = 164;
+    static final int TRACE_WRITTEN_OFFSET = 168;
+    static final int MAX_OUTPUT_BYTES_OFFSET = 176;
+    //see MozjpegOptions, read by the mozjpeg build only
+    static final int MOZJPEG_OPTIONS_OFFSET = 184;
+    static final int COMPRESS_PROFILE_OFFSET = 188;
+    static final int OPTIMIZE_SCANS_OFFSET = 192;
+    static final int DC_SCAN_OPT_MODE_OFFSET = 196;
+    static final int SIZE = 200;
+
+    static final int DEFAULT_TRACE_BUFFER_SIZE = 64 * 1024;
+    static final int MIN_TRACE_BUFFER_SIZE = 1024;
+
+    private final ByteBuffer buffer;
+    private final Runnable progressCallback;
+    private final int traceCapacity;
+    private final Consumer<String> traceListener;
+    //read position of the trace listener, in TRACE_WRITTEN units, and the unfinished last line
+    private long traceReadPosition = 0;
+    private byte[] pendingTraceLine = new byte[0];
+
+    private ReencodeControl(JPEGReencodeArgs args)
+    {
+        this.traceCapacity = args.isVerbose() ? args.getTraceBufferSize() : 0;
+        this.traceListener = args.isVerbose() ? args.getTraceListener() : null;
+        this.buffer = ByteBuffer.allocateDirect(SIZE + traceCapacity).order(ByteOrder.nativeOrder());
+        buffer.putInt(TRACE_CAPACITY_OFFSET, traceCapacity);
+
+        Consumer<ReencodeProgress> progressListener = args.getProgressListener();
+        CancellationSignal cancellationSignal = args.getCancellationSignal();
+
+        buffer.putInt(PROGRESS_INTERVAL_MILLIS_OFFSET, (int) Math.min(Integer.MAX_VALUE, args.getProgressInterval().toMillis()));
+        if (isCancelled(cancellationSignal))
+            buffer.putInt(CANCELLED_OFFSET, 1);
+
+        if (args.getTimeout() != null)
+            buffer.putInt(TIMEOUT_MILLIS_OFFSET, (int) Math.max(1, Math.min(Integer.MAX_VALUE, args.getTimeout().toMillis())));
+
+        //0 means no limit
+        buffer.putInt(MAX_SCANS_OFFSET, args.getMaxScans());
+        buffer.putLong(MAX_PIXELS_OFFSET, args.getMaxPixels());
+        buffer.putLong(MAX_MEMORY_BYTES_OFFSET, args.getMaxMemoryBytes());
+
+        if (args.shouldSkipAlreadyOptimized())
+            buffer.putInt(WRITE_FINGERPRINT_OFFSET, 1);
+
+        MozjpegOptions mozjpegOptions = args.getMozjpegOptions();
+        if (mozjpegOptions != null)
+        {
+            buffer.putInt(MOZJPEG_OPTIONS_OFFSET, 1);
+            buffer.putInt(COMPRESS_PROFILE_OFFSET, mozjpegOptions.getProfile().ordinal());
+            buffer.putInt(OPTIMIZE_SCANS_OFFSET, mozjpegOptions.shouldOptimizeScans() ? 1 : 0);
+            buffer.putInt(DC_SCAN_OPT_MODE_OFFSET, mozjpegOptions.getDCScanMode().ordinal());
+        }
+
+        //CancellationSignal accepts a single OnCancelListener, which belongs to the caller. Poll it instead.
+        //the callback is always installed, since an interrupt of the reencoding thread is polled as well
+        this.progressCallback = () ->
+        {
+            if (isCancelled(cancellationSignal))
+            {
+                buffer.putInt(CANCELLED_OFFSET, 1);
+                return;
+            }
+
+            if (progressListener != null)
+                progressListener.accept(getProgress());
+            if (traceListener != null)
+                drainTrace(/*includePendingLine*/ false);
+        };
+    }
+
+    //interrupting the reencoding thread (for instance by cancelling a coroutine or a future) cancels the reencode
+    private static boolean isCancelled(CancellationSignal cancellationSignal)
+    {
+        return (cancellationSignal != null && cancellationSignal.isCanceled()) || Thread.currentThread().isInterrupted();
+    }
+
+    static ReencodeControl create(JPEGReencodeArgs args)
+    {
+        return new ReencodeControl(args);
+    }
+
+    //the native destination manager aborts encoding with EXIT_NO_GAIN as soon as the output gets bigger
+    void setMaxOutputSize(long maxOutputSize)
+    {
+        buffer.putLong(MAX_OUTPUT_BYTES_OFFSET, maxOutputSize);
+    }
+
+    ByteBuffer getBuffer()
+    {
+        return buffer;
+    }
+
+    Runnable getProgressCallback()
+    {
+        return progressCallback;
+    }
+
+    ReencodeResult getResult(long inputSize, long outputSize, boolean originalKept, long wallTimeNanos, long pipeSetupWallTimeNanos, long pipeSetupCpuTimeNanos)
+    {
+        long[] stageWallTimeNanos = new long[ReencodeResult.Stage.values().length];
+        long[] stageCpuTimeNanos = new long[ReencodeResult.Stage.values().length];
+
+        stageWallTimeNanos[ReencodeResult.Stage.PIPE_SETUP.ordinal()] = pipeSetupWallTimeNanos;
+        stageCpuTimeNanos[ReencodeResult.Stage.PIPE_SETUP.ordinal()] = pipeSetupCpuTimeNanos;
+        readStageTime(ReencodeResult.Stage.COEFFICIENT_READ, READ_TIME_OFFSET, stageWallTimeNanos, stageCpuTimeNanos);
+        readStageTime(ReencodeResult.Stage.ENCODE, ENCODE_TIME_OFFSET, stageWallTimeNanos, stageCpuTimeNanos);
+        readStageTime(ReencodeResult.Stage.EXIF_MERGE, MARKERS_TIME_OFFSET, stageWallTimeNanos, stageCpuTimeNanos);
+
+        return new ReencodeResult(inputSize, outputSize, originalKept, /*skipped*/ false, /*fromCache*/ false, /*shared*/ false, buffer.getInt(NUM_WARNINGS_OFFSET), getWarningCodes(),
+            wallTimeNanos, stageWallTimeNanos, stageCpuTimeNanos, getTrace());
+    }
+
+    boolean hasTraceListener()
+    {
+        return traceListener != null;
+    }
+
+    //the last trace bytes still in the ring buffer, null if not verbose
+    String getTrace()
+    {
+        if (traceCapacity == 0)
+            return null;
+
+        long written = buffer.getLong(TRACE_WRITTEN_OFFSET);
+        long start = Math.max(0, written - traceCapacity);
+        String trace = new String(readTrace(start, written), StandardCharsets.UTF_8);
+        return start > 0 ? "[" + start + " trace bytes overwritten]\n" + trace : trace;
+    }
+
+    //passes the complete lines written since the last call to the trace listener
+    void drainTrace(boolean includePendingLine)
+    {
+        if (traceListener == null)
+            return;
+
+        long written = buffer.getLong(TRACE_WRITTEN_OFFSET);
+        if (written - traceReadPosition > traceCapacity)
+        {
+            traceListener.accept("[" + (written - traceReadPosition - traceCapacity) + " trace bytes overwritten]");
+            traceReadPosition = written - traceCapacity;
+            pendingTraceLine = new byte[0];
+        }
+
+        byte[] newBytes = readTrace(traceReadPosition, written);
+        traceReadPosition = written;
+
+        byte[] bytes = new byte[pendingTraceLine.length + newBytes.length];
+        System.arraycopy(pendingTraceLine, 0, bytes, 0, pendingTraceLine.length);
+        System.arraycopy(newBytes, 0, bytes, pendingTraceLine.length, newBytes.length);
+
+        int lineStart = 0;
+        for (int i = 0; i < bytes.length; i++)
+        {
+            if (bytes[i] == '\n')
+            {
+                traceListener.accept(new String(bytes, lineStart, i - lineStart, StandardCharsets.UTF_8));
+                lineStart = i + 1;
+            }
+        }
+
+        pendingTraceLine = new byte[bytes.length - lineStart];
+        System.arraycopy(bytes, lineStart, pendingTraceLine, 0, pendingTraceLine.length);
+        if (includePendingLine && pendingTraceLine.length > 0)
+        {
+            traceListener.accept(new String(pendingTraceLine, StandardCharsets.UTF_8));
+            pendingTraceLine = new byte[0];
+        }
+    }
+
+    //byte at position p is at index p % traceCapacity of the ring
+    private byte[] readTrace(long start, long end)
+    {
+        byte[] bytes = new byte[(int) (end - start)];
+        ByteBuffer ring = buffer.duplicate();
+        int position = (int) (start % traceCapacity);
+        int firstChunkLength = Math.min(bytes.length, traceCapacity - position);
+        ring.position(SIZE + position);
+        ring.get(bytes, 0, firstChunkLength);
+        ring.position(SIZE);
+        ring.get(bytes, firstChunkLength, bytes.length - firstChunkLength);
+        return bytes;
+    }
+
+    int getErrorCode()
+    {
+        return buffer.getInt(ERROR_CODE_OFFSET);
+    }
+
+    int getCorruptDataWarningCount()
+    {
+        return buffer.getInt(CORRUPT_DATA_WARNINGS_OFFSET);
+    }
+
+    int[] getWarningCodes()
+    {
+        int[] warningCodes = new int[Math.min(MAX_WARNING_CODES, buffer.getInt(NUM_WARNINGS_OFFSET))];
+        for (int i = 0; i < warningCodes.length; i++)
+            warningCodes[i] = buffer.getInt(WARNING_CODES_OFFSET + i * 4);
+        return warningCodes;
+    }
+
+    private void readStageTime(ReencodeResult.Stage stage, int offset, long[] stageWallTimeNanos, long[] stageCpuTimeNanos)
+    {
+        stageWallTimeNanos[stage.ordinal()] = buffer.getLong(offset);
+        stageCpuTimeNanos[stage.ordinal()] = buffer.getLong(offset + 8);
+    }
+
+    private ReencodeProgress getProgress()
+    {
+        return new ReencodeProgress(
+            /*stage*/ ReencodeProgress.Stage.values()[buffer.getInt(STAGE_OFFSET)],
+            /*completedPasses*/ buffer.getInt(COMPLETED_PASSES_OFFSET),
+            /*totalPasses*/ buffer.getInt(TOTAL_PASSES_OFFSET),
+            /*passCounter*/ buffer.getLong(PASS_COUNTER_OFFSET),
+            /*passLimit*/ buffer.getLong(PASS_LIMIT_OFFSET));
+    }
+}
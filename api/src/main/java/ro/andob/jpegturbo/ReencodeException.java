@@ -0,0 +1,63 @@
+package ro.andob.jpegturbo;
+
+//thrown on reencode errors, passed to the warning logger on warnings.
+//codes are libjpeg msg_code values (J_MESSAGE_CODE in jerror.h of the backend), they differ between backends
+public final class ReencodeException extends RuntimeException
+{
+    private final int resultCode;
+    private final int errorCode;
+    private final int[] warningCodes;
+    private final int corruptDataWarningCount;
+    private final String trace;
+
+    ReencodeException(String message, Throwable cause, int resultCode, ReencodeControl control)
+    {
+        super(message, cause);
+        this.resultCode = resultCode;
+        this.errorCode = control.getErrorCode();
+        this.warningCodes = control.getWarningCodes();
+        this.corruptDataWarningCount = control.getCorruptDataWarningCount();
+        this.trace = control.getTrace();
+    }
+
+    //one of the EXIT_ codes from cdjpeg.h / Bindings.c: 1 failure, 2 warning, 4 timeout
+    public int getResultCode()
+    {
+        return resultCode;
+    }
+
+    public boolean isTimeout()
+    {
+        return resultCode == ExitCodes.EXIT_TIMEOUT;
+    }
+
+    //msg_code of the fatal libjpeg error. 0 (JMSG_NOMESSAGE) if there was none,
+    //for instance on timeouts, resource limit errors or Jpegli errors
+    public int getErrorCode()
+    {
+        return errorCode;
+    }
+
+    //msg_code of the first libjpeg warnings, in order
+    public int[] getWarningCodes()
+    {
+        return warningCodes.clone();
+    }
+
+    //"Corrupt JPEG data" warnings. These are treated as errors, the output would be damaged
+    public int getCorruptDataWarningCount()
+    {
+        return corruptDataWarningCount;
+    }
+
+    public boolean isCorruptData()
+    {
+        return corruptDataWarningCount > 0;
+    }
+
+    //libjpeg trace of a verbose reencode, null otherwise
+    public String getTrace()
+    {
+        return trace;
+    }
+}
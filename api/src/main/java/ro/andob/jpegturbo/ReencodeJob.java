@@ -0,0 +1,148 @@
+package ro.andob.jpegturbo;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public final class ReencodeJob
+{
+    private static final List<ReencodeMetrics> globalMetrics = new CopyOnWriteArrayList<>();
+
+    private final String backend;
+    private final JPEGReencodeArgs args;
+    private final long queueWaitNanos;
+    private final long startTime;
+    private boolean finished = false;
+    private long durationNanos = 0;
+    private long inputSize = ReencodeResult.UNKNOWN_SIZE;
+    private long outputSize = ReencodeResult.UNKNOWN_SIZE;
+    private Throwable failure = null;
+
+    private ReencodeJob(NativeImplementation nativeImpl, JPEGReencodeArgs args, long queueWaitNanos)
+    {
+        this.backend = nativeImpl.toString();
+        this.args = args;
+        this.queueWaitNanos = queueWaitNanos;
+        this.startTime = System.nanoTime();
+    }
+
+    static void register(ReencodeMetrics metrics)
+    {
+        globalMetrics.add(Objects.requireNonNull(metrics));
+    }
+
+    static void unregister(ReencodeMetrics metrics)
+    {
+        globalMetrics.remove(metrics);
+    }
+
+    static ReencodeJob start(NativeImplementation nativeImpl, JPEGReencodeArgs args)
+    {
+        return start(nativeImpl, args, /*queueWaitNanos*/ 0);
+    }
+
+    static ReencodeJob start(NativeImplementation nativeImpl, JPEGReencodeArgs args, long queueWaitNanos)
+    {
+        ReencodeJob job = new ReencodeJob(nativeImpl, args, queueWaitNanos);
+        job.dispatch();
+        return job;
+    }
+
+    void succeeded(long inputSize, long outputSize)
+    {
+        this.finished = true;
+        this.durationNanos = System.nanoTime() - startTime;
+        this.inputSize = inputSize;
+        this.outputSize = outputSize;
+        dispatch();
+    }
+
+    void failed(Throwable failure)
+    {
+        this.finished = true;
+        this.durationNanos = System.nanoTime() - startTime;
+        this.failure = failure;
+        dispatch();
+    }
+
+    private void dispatch()
+    {
+        for (ReencodeMetrics metrics : globalMetrics)
+            dispatch(metrics);
+
+        if (args.getMetrics() != null)
+            dispatch(args.getMetrics());
+    }
+
+    private void dispatch(ReencodeMetrics metrics)
+    {
+        try
+        {
+            if (finished) metrics.onJobFinished(this);
+            else metrics.onJobStarted(this);
+        }
+        catch (Throwable ex)
+        {
+            args.getWarningLogger().accept(ex);
+        }
+    }
+
+    //JPEG-Turbo, Mozjpeg or Jpegli
+    public String getBackend()
+    {
+        return backend;
+    }
+
+    //time spent waiting for a thread, for async and batch reencodes. 0 for direct calls
+    public long getQueueWaitNanos()
+    {
+        return queueWaitNanos;
+    }
+
+    public boolean isFinished()
+    {
+        return finished;
+    }
+
+    //0 until the job is finished
+    public long getDurationNanos()
+    {
+        return durationNanos;
+    }
+
+    //in bytes, -1 if unknown or if the job failed
+    public long getInputSize()
+    {
+        return inputSize;
+    }
+
+    //in bytes, -1 if unknown or if the job failed
+    public long getOutputSize()
+    {
+        return outputSize;
+    }
+
+    //null if the job is still running or was successful
+    public Throwable getFailure()
+    {
+        return failure;
+    }
+
+    public boolean isSuccessful()
+    {
+        return finished && failure == null;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ReencodeJob{" +
+            "backend=" + backend +
+            ", queueWaitNanos=" + queueWaitNanos +
+            ", durationNanos=" + durationNanos +
+            ", inputSize=" + inputSize +
+            ", outputSize=" + outputSize +
+            ", failure=" + failure +
+            '}';
+    }
+}
@@ -0,0 +1,23 @@
+package ro.andob.jpegturbo;
+
+//receives an event when each reencode job starts and ends, on the reencoding thread.
+//implementations must be thread safe and fast, jobs may run in parallel.
+//exceptions thrown by the listener are reported to the warning logger, they do not fail the job
+public interface ReencodeMetrics
+{
+    default void onJobStarted(ReencodeJob job) {}
+
+    //either successful, with input / output sizes, or failed, with the failure cause
+    default void onJobFinished(ReencodeJob job) {}
+
+    //receives the events of all jobs, in addition to the metrics set on JPEGReencodeArgs
+    static void register(ReencodeMetrics metrics)
+    {
+        ReencodeJob.register(metrics);
+    }
+
+    static void unregister(ReencodeMetrics metrics)
+    {
+        ReencodeJob.unregister(metrics);
+    }
+}
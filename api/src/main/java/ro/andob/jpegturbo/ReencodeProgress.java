@@ -0,0 +1,70 @@
+package ro.andob.jpegturbo;
+
+public final class ReencodeProgress
+{
+    public enum Stage { DECODE, ENCODE }
+
+    private final Stage stage;
+    private final int completedPasses;
+    private final int totalPasses;
+    private final long passCounter;
+    private final long passLimit;
+
+    ReencodeProgress(Stage stage, int completedPasses, int totalPasses, long passCounter, long passLimit)
+    {
+        this.stage = stage;
+        this.completedPasses = completedPasses;
+        this.totalPasses = totalPasses;
+        this.passCounter = passCounter;
+        this.passLimit = passLimit;
+    }
+
+    public Stage getStage()
+    {
+        return stage;
+    }
+
+    //a pass is a full sweep over the image, for instance one pass per scan of a progressive JPEG.
+    //the total number of passes is only an estimate, it may grow while decoding
+    public int getCompletedPasses()
+    {
+        return completedPasses;
+    }
+
+    public int getTotalPasses()
+    {
+        return totalPasses;
+    }
+
+    public long getPassCounter()
+    {
+        return passCounter;
+    }
+
+    public long getPassLimit()
+    {
+        return passLimit;
+    }
+
+    //between 0 and 1, progress of the current stage
+    public float getStageProgress()
+    {
+        if (totalPasses <= 0)
+            return 0f;
+
+        float passProgress = passLimit > 0 ? (float) passCounter / passLimit : 0f;
+        return Math.min(1f, (completedPasses + passProgress) / totalPasses);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ReencodeProgress{" +
+            "stage=" + stage +
+            ", completedPasses=" + completedPasses +
+            ", totalPasses=" + totalPasses +
+            ", passCounter=" + passCounter +
+            ", passLimit=" + passLimit +
+            '}';
+    }
+}
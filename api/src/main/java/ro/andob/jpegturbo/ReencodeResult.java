@@ -0,0 +1,169 @@
+package ro.andob.jpegturbo;
+
+import java.time.Duration;
+
+public final class ReencodeResult
+{
+    public enum Stage
+    {
+        //creating the pipe file and starting the pump that streams the input file into it (file mode only)
+        PIPE_SETUP,
+        //reading the JPEG header and the DCT coefficients. Wall time includes waiting for the input
+        COEFFICIENT_READ,
+        //entropy coding of the coefficients into the output
+        ENCODE,
+        //copying EXIF and the other APPn / COM markers into the output
+        EXIF_MERGE
+    }
+
+    static final long UNKNOWN_SIZE = -1;
+
+    private final long inputSize;
+    private final long outputSize;
+    private final boolean originalKept;
+    private final boolean skipped;
+    private final boolean fromCache;
+    private final boolean shared;
+    private final int warningCount;
+    private final int[] warningCodes;
+    private final long wallTimeNanos;
+    private final long[] stageWallTimeNanos;
+    private final long[] stageCpuTimeNanos;
+    private final String trace;
+
+    ReencodeResult(long inputSize, long outputSize, boolean originalKept, boolean skipped, boolean fromCache, boolean shared, int warningCount, int[] warningCodes, long wallTimeNanos, long[] stageWallTimeNanos, long[] stageCpuTimeNanos, String trace)
+    {
+        this.inputSize = inputSize;
+        this.outputSize = outputSize;
+        this.originalKept = originalKept;
+        this.skipped = skipped;
+        this.fromCache = fromCache;
+        this.shared = shared;
+        this.warningCount = warningCount;
+        this.warningCodes = warningCodes;
+        this.wallTimeNanos = wallTimeNanos;
+        this.stageWallTimeNanos = stageWallTimeNanos;
+        this.stageCpuTimeNanos = stageCpuTimeNanos;
+        this.trace = trace;
+    }
+
+    static ReencodeResult skipped(long inputSize, long wallTimeNanos)
+    {
+        return new ReencodeResult(inputSize, inputSize, /*originalKept*/ true, /*skipped*/ true, /*fromCache*/ false, /*shared*/ false, /*warningCount*/ 0, /*warningCodes*/ new int[0],
+            wallTimeNanos, new long[Stage.values().length], new long[Stage.values().length], /*trace*/ null);
+    }
+
+    static ReencodeResult fromCache(long inputSize, long outputSize, boolean originalKept, long wallTimeNanos)
+    {
+        return new ReencodeResult(inputSize, outputSize, originalKept, /*skipped*/ false, /*fromCache*/ true, /*shared*/ false, /*warningCount*/ 0, /*warningCodes*/ new int[0],
+            wallTimeNanos, new long[Stage.values().length], new long[Stage.values().length], /*trace*/ null);
+    }
+
+    //of a follower of a concurrent reencode of the same input: the leader's warnings, with this call's sizes and wall time
+    static ReencodeResult shared(ReencodeResult leaderResult, long inputSize, long outputSize, long wallTimeNanos)
+    {
+        return new ReencodeResult(inputSize, outputSize, leaderResult.originalKept, /*skipped*/ false, /*fromCache*/ false, /*shared*/ true,
+            leaderResult.warningCount, leaderResult.warningCodes, wallTimeNanos, new long[Stage.values().length], new long[Stage.values().length], /*trace*/ null);
+    }
+
+    //in bytes, -1 if unknown (for instance when reading from a pipe or socket file descriptor)
+    public long getInputSize()
+    {
+        return inputSize;
+    }
+
+    //in bytes, -1 if unknown
+    public long getOutputSize()
+    {
+        return outputSize;
+    }
+
+    //"no gain": the reencoded image was not smaller (or not smaller enough, see JPEGReencodeArgs.keepSmaller),
+    //so it was thrown away and the output file has the original content. Always checked when reencoding in place
+    public boolean isOriginalKept()
+    {
+        return originalKept;
+    }
+
+    //the image was not reencoded at all, it was already optimized (see JPEGReencodeArgs.skipAlreadyOptimized).
+    //the original is kept, stage times are 0
+    public boolean isSkipped()
+    {
+        return skipped;
+    }
+
+    //the output was copied from the ReencodeCache (see JPEGReencodeArgs.cache), stage times are 0
+    public boolean isFromCache()
+    {
+        return fromCache;
+    }
+
+    //the output was copied from a concurrent reencode of the same input with the same options,
+    //this call only waited for it instead of running its own native job. Stage times are 0
+    public boolean isShared()
+    {
+        return shared;
+    }
+
+    //saved bytes, negative if the output is bigger than the input
+    public long getSavedSize()
+    {
+        return inputSize != UNKNOWN_SIZE && outputSize != UNKNOWN_SIZE ? inputSize - outputSize : 0;
+    }
+
+    //libjpeg warnings that do not fail the reencode (for instance an unknown JFIF revision)
+    public int getWarningCount()
+    {
+        return warningCount;
+    }
+
+    //libjpeg msg_code of the first warnings, see ReencodeException.getWarningCodes
+    public int[] getWarningCodes()
+    {
+        return warningCodes.clone();
+    }
+
+    //of the whole reencode call
+    public Duration getWallTime()
+    {
+        return Duration.ofNanos(wallTimeNanos);
+    }
+
+    public Duration getWallTime(Stage stage)
+    {
+        return Duration.ofNanos(stageWallTimeNanos[stage.ordinal()]);
+    }
+
+    //time spent by the reencoding thread on the CPU
+    public Duration getCpuTime(Stage stage)
+    {
+        return Duration.ofNanos(stageCpuTimeNanos[stage.ordinal()]);
+    }
+
+    //libjpeg trace of a verbose reencode (the last bytes of it, see JPEGReencodeArgs.verbose), null otherwise
+    public String getTrace()
+    {
+        return trace;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder("ReencodeResult{");
+        builder.append("inputSize=").append(inputSize);
+        builder.append(", outputSize=").append(outputSize);
+        builder.append(", originalKept=").append(originalKept);
+        builder.append(", skipped=").append(skipped);
+        builder.append(", fromCache=").append(fromCache);
+        builder.append(", shared=").append(shared);
+        builder.append(", warningCount=").append(warningCount);
+        builder.append(", wallTimeMillis=").append(wallTimeNanos / 1_000_000);
+        for (Stage stage : Stage.values())
+        {
+            builder.append(", ").append(stage).append("=")
+                .append(stageWallTimeNanos[stage.ordinal()] / 1_000_000).append("ms wall / ")
+                .append(stageCpuTimeNanos[stage.ordinal()] / 1_000_000).append("ms cpu");
+        }
+        return builder.append('}').toString();
+    }
+}
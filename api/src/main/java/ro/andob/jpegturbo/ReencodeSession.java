@@ -0,0 +1,51 @@
+package ro.andob.jpegturbo;
+
+import java.nio.ByteBuffer;
+
+//keeps the native decoder and encoder (and their memory pools) alive between images.
+//safe to share between threads, but calls on the same session are serialized: open one session per thread to reencode in parallel
+public final class ReencodeSession implements AutoCloseable
+{
+    private final NativeImplementation nativeImpl;
+    private long sessionHandle;
+
+    ReencodeSession(NativeImplementation nativeImpl)
+    {
+        this.nativeImpl = nativeImpl;
+        this.sessionHandle = nativeImpl.createSession();
+        if (sessionHandle == Reencoder.NO_SESSION)
+            throw new RuntimeException("Cannot create "+nativeImpl+" reencode session!");
+    }
+
+    public synchronized byte[] reencode(byte[] input, JPEGReencodeArgs args)
+    {
+        return Reencoder.reencode(nativeImpl, getSessionHandle(), input, 0, input.length, args);
+    }
+
+    public synchronized ByteBuffer reencode(ByteBuffer input, JPEGReencodeArgs args)
+    {
+        return Reencoder.reencode(nativeImpl, getSessionHandle(), input, args);
+    }
+
+    public synchronized int reencode(ByteBuffer input, ByteBuffer output, JPEGReencodeArgs args)
+    {
+        return Reencoder.reencode(nativeImpl, getSessionHandle(), input, output, args);
+    }
+
+    private long getSessionHandle()
+    {
+        if (sessionHandle == Reencoder.NO_SESSION)
+            throw new IllegalStateException("Session is closed!");
+        return sessionHandle;
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        if (sessionHandle != Reencoder.NO_SESSION)
+        {
+            nativeImpl.destroySession(sessionHandle);
+            sessionHandle = Reencoder.NO_SESSION;
+        }
+    }
+}
@@ -1,83 +1,792 @@
 package ro.andob.jpegturbo;
 
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.TimeoutException;
 
 import static ro.andob.jpegturbo.ExitCodes.*;
 
 final class Reencoder
 {
+    static final long NO_SESSION = 0;
+    //how often a follower of a concurrent reencode checks its own cancellation signal and timeout
+    private static final long FLIGHT_POLL_INTERVAL_MILLIS = 50;
+
+    public static ReencodeResult reencode(NativeImplementation nativeImpl, JPEGReencodeArgs args)
+    {
+        try
+        {
+            return reencodeOrThrow(nativeImpl, args);
+        }
+        catch (Throwable ex)
+        {
+            args.getErrorLogger().accept(ex);
+
+            if (args.shouldThrowOnError())
+                throw ex;
+
+            return null;
+        }
+    }
+
+    static ReencodeResult reencodeOrThrow(NativeImplementation nativeImpl, JPEGReencodeArgs args)
+    {
+        return reencodeOrThrow(nativeImpl, args, /*queueWaitNanos*/ 0);
+    }
+
+    static ReencodeResult reencodeOrThrow(NativeImplementation nativeImpl, JPEGReencodeArgs args, long queueWaitNanos)
+    {
+        ReencodeJob job = ReencodeJob.start(nativeImpl, args, queueWaitNanos);
+        try
+        {
+            ReencodeResult result = reencodeFile(nativeImpl, args);
+            job.succeeded(result.getInputSize(), result.getOutputSize());
+            return result;
+        }
+        catch (Throwable ex)
+        {
+            job.failed(ex);
+            throw ex;
+        }
+    }
+
+    private static ReencodeResult reencodeFile(NativeImplementation nativeImpl, JPEGReencodeArgs args)
+    {
+        long startTime = System.nanoTime();
+        //read before reencoding, input and output may be the same file
+        long inputSize = args.getInputFile().length();
+
+        //much cheaper than a reencode that would not gain anything: only the header, up to the first scan, is read
+        if (args.shouldSkipAlreadyOptimized() && isAlreadyOptimized(nativeImpl, args))
+        {
+            if (!FileIOUtils.isSameFile(args.getInputFile(), args.getOutputFile()))
+                FileIOUtils.copy(args.getInputFile(), args.getOutputFile(), args.shouldFsync());
+            return ReencodeResult.skipped(inputSize, System.nanoTime() - startTime);
+        }
+
+        //in place, the original must stay intact until the new content is complete:
+        //encode into a sibling temp file, then rename it over the original
+        boolean inPlace = FileIOUtils.isSameFile(args.getInputFile(), args.getOutputFile());
+        File outputFile = inPlace ? FileIOUtils.getSiblingTempFile(args.getOutputFile()) : args.getOutputFile();
+
+        //in place, a bigger output would only be thrown away, so encoding stops as soon as it is not smaller
+        int minSavingPercent = args.getMinSavingPercent() >= 0 ? args.getMinSavingPercent() : inPlace ? 0 : -1;
+
+        //hashed before reencoding, in place the input is replaced
+        ReencodeCache cache = args.getCache();
+        String cacheKey = cache != null ? ReencodeCache.getKey(args.getInputFile(), getOutputOptions(nativeImpl, args, minSavingPercent)) : null;
+        if (cacheKey != null)
+        {
+            ReencodeResult cachedResult = copyFromCache(cache, cacheKey, args, inputSize, inPlace, outputFile, startTime);
+            if (cachedResult != null)
+                return cachedResult;
+        }
+
+        //the same photo reencoded at the same time by several callers: only one native job runs.
+        //verbose callers want their own trace, they never share a job
+        String flightKey = args.isVerbose() ? null : getFlightKey(nativeImpl, args, minSavingPercent, cacheKey);
+        InFlightReencodes.Seat seat = flightKey != null ? InFlightReencodes.join(flightKey, args.getOutputFile()) : null;
+        while (seat != null && !seat.isLeader())
+        {
+            ReencodeResult sharedResult;
+            try { sharedResult = copyFromFlight(nativeImpl, seat, args, inputSize, inPlace, outputFile, startTime); }
+            finally { seat.release(); }
+            if (sharedResult != null)
+                return sharedResult;
+
+            //the leader failed, or its output could not be copied: reencode, unless another caller took over meanwhile
+            seat = InFlightReencodes.join(flightKey, args.getOutputFile());
+        }
+
+        ReencodeResult result = null;
+        try
+        {
+            result = reencodeNative(nativeImpl, args, inputSize, inPlace, outputFile, minSavingPercent, cache, cacheKey, startTime);
+            return result;
+        }
+        finally
+        {
+            //before returning: from then on, the output file belongs to the caller
+            if (seat != null)
+                InFlightReencodes.land(seat, result, /*snapshot*/ () -> snapshotOutput(args));
+        }
+    }
+
+    //a private copy of the leader's output, that its caller cannot delete or overwrite while the followers copy it
     @SuppressWarnings("ResultOfMethodCallIgnored")
-    public static void reencode(NativeImplementation nativeImpl, JPEGReencodeArgs args)
+    private static File snapshotOutput(JPEGReencodeArgs args)
     {
-        FileIOUtils fileIOUtils = new FileIOUtils(args.getContext(), nativeImpl, args.getWarningLogger());
+        File snapshotFile = FileIOUtils.getFileWithUniqueName(args.getScratchDirectory());
+        try
+        {
+            FileIOUtils.copy(args.getOutputFile(), snapshotFile, /*fsync*/ false);
+            return snapshotFile;
+        }
+        catch (RuntimeException ex)
+        {
+            args.getWarningLogger().accept(ex);
+            snapshotFile.delete();
+            throw ex;
+        }
+    }
 
-        File errorFile = fileIOUtils.getFileWithUniqueName();
-        File intermediateFile = fileIOUtils.getFileWithUniqueName();
+    @SuppressWarnings("ResultOfMethodCallIgnored")
+    private static ReencodeResult reencodeNative(NativeImplementation nativeImpl, JPEGReencodeArgs args, long inputSize, boolean inPlace, File outputFile, int minSavingPercent, ReencodeCache cache, String cacheKey, long startTime)
+    {
+        FileIOUtils fileIOUtils = new FileIOUtils(args.getScratchDirectory(), nativeImpl, args.getPipeExecutor(), args.getWarningLogger());
+
+        String[] errorMessage = new String[1];
+        ReencodeControl control = ReencodeControl.create(args);
+        if (minSavingPercent >= 0)
+            control.setMaxOutputSize(Math.min(inputSize - 1, inputSize * (100 - minSavingPercent) / 100));
 
         try
         {
-            int resultCode = fileIOUtils.useInputPipeFile(args.getInputFile(),
-                inputPipeFile -> nativeImpl.reencode(
-                    /*inputFilePath*/ inputPipeFile.getAbsolutePath(),
-                    /*outputFilePath*/ intermediateFile.getAbsolutePath(),
-                    /*errorFilePath*/ errorFile.getAbsolutePath(),
-                    /*progressive*/ args.isProgressive(),
-                    /*optimize*/ args.isOptimize(),
-                    /*verbose*/ args.isVerbose()
-                )
-            );
+            int resultCode = args.isInMemoryScratch()
+                ? reencodeFromFileDescriptors(nativeImpl, args, outputFile, errorMessage, control)
+                : fileIOUtils.useInputPipeFile(args.getInputFile(),
+                    inputPipeFile -> nativeImpl.reencode(
+                        /*inputFilePath*/ inputPipeFile.getAbsolutePath(),
+                        /*outputFilePath*/ outputFile.getAbsolutePath(),
+                        /*errorMessage*/ errorMessage,
+                        /*control*/ control.getBuffer(),
+                        /*progressCallback*/ control.getProgressCallback(),
+                        /*progressive*/ args.isProgressive(),
+                        /*optimize*/ args.isOptimize(),
+                        /*verbose*/ args.isVerbose()
+                    )
+                );
+
+            //the native error (or cancellation, timeout) explains a missing output file, report it first
+            if (resultCode != EXIT_SUCCESS || args.isVerbose())
+                checkResultCode(nativeImpl, args, control, resultCode, errorMessage[0]);
+
+            if (resultCode == EXIT_NO_GAIN)
+            {
+                //keep the original: in place it was never touched, otherwise it replaces the partial output
+                outputFile.delete();
+                if (!inPlace)
+                    FileIOUtils.copy(args.getInputFile(), outputFile, args.shouldFsync());
+
+                if (cacheKey != null)
+                    putIntoCache(cache, cacheKey, /*outputFile*/ null, args);
+
+                return control.getResult(inputSize, inputSize, /*originalKept*/ true, System.nanoTime() - startTime,
+                    fileIOUtils.getPipeSetupWallTimeNanos(), fileIOUtils.getPipeSetupCpuTimeNanos());
+            }
+
+            if (!outputFile.exists())
+                throw new RuntimeException("Output file "+outputFile.getAbsolutePath()+" does not exist!");
+
+            long outputSize = outputFile.length();
+            if (inPlace)
+                FileIOUtils.replaceAtomically(outputFile, args.getOutputFile(), args.shouldFsync());
+            else if (args.shouldFsync())
+                FileIOUtils.fsync(outputFile);
 
-            nativeImpl.mergeExifAndJpeg(
-                /*inputExifFilePath*/ args.getInputFile().getAbsolutePath(),
-                /*inputImageFilePath*/ intermediateFile.getAbsolutePath(),
-                /*outputFilePath*/ args.getOutputFile().getAbsolutePath()
+            if (cacheKey != null)
+                putIntoCache(cache, cacheKey, args.getOutputFile(), args);
+
+            return control.getResult(inputSize, outputSize, /*originalKept*/ false, System.nanoTime() - startTime,
+                fileIOUtils.getPipeSetupWallTimeNanos(), fileIOUtils.getPipeSetupCpuTimeNanos());
+        }
+        catch (Throwable ex)
+        {
+            //in place, this is the temp file, the original is untouched
+            if (outputFile.exists())
+                outputFile.delete();
+
+            throw ex;
+        }
+    }
+
+    private static boolean isAlreadyOptimized(NativeImplementation nativeImpl, JPEGReencodeArgs args)
+    {
+        JPEGHeader header;
+        //a broken header is reported by the reencode itself, with the libjpeg error codes
+        try { header = JPEGHeader.probe(nativeImpl, args.getInputFile()); }
+        catch (RuntimeException ex) { return false; }
+
+        //already reencoded by this library: skipped only with the same backend and options (the output would be the same).
+        //with another backend or other options, the caller asked for something else, so the header is not looked at
+        if (header.hasFingerprint())
+            return Fingerprint.matches(header.getFingerprint(), nativeImpl, args);
+
+        MozjpegOptions mozjpegOptions = nativeImpl.hasMozjpegExtensions() ? args.getMozjpegOptions() : null;
+        boolean isMozjpeg = nativeImpl.hasMozjpegExtensions();
+        //mozjpeg's scan search may still find a smaller script for a progressive input (it runs by default)
+        boolean searchesScans = isMozjpeg && (mozjpegOptions == null || mozjpegOptions.searchesScans());
+        if (header.isArithmetic() || (header.isProgressive() && !searchesScans))
+            return true;
+
+        //a baseline reencode only rebuilds the Huffman tables. Mozjpeg's max compression profile (the default) is always progressive
+        boolean progressiveOutput = args.isProgressive() || (isMozjpeg && (mozjpegOptions == null || mozjpegOptions.isAlwaysProgressive()));
+        return !header.isProgressive() && header.hasOptimizedHuffmanTables() && !progressiveOutput;
+    }
+
+    //everything that changes the output, next to the input content, for both the cache key and the flight key.
+    //the limits are part of it: a caller with stricter limits must not get an output it would have rejected
+    private static String getOutputOptions(NativeImplementation nativeImpl, JPEGReencodeArgs args, int minSavingPercent)
+    {
+        return nativeImpl +
+            "\nprogressive=" + args.isProgressive() +
+            "\noptimize=" + args.isOptimize() +
+            "\nfingerprint=" + args.shouldSkipAlreadyOptimized() +
+            "\nminSavingPercent=" + minSavingPercent +
+            "\nmaxScans=" + args.getMaxScans() +
+            "\nmaxPixels=" + args.getMaxPixels() +
+            "\nmaxMemoryBytes=" + args.getMaxMemoryBytes() +
+            (args.getMozjpegOptions() != null ? "\nmozjpegOptions=" + args.getMozjpegOptions() : "");
+    }
+
+    //null on a miss, or if the entry could not be read (for instance evicted meanwhile), then the input is reencoded
+    private static ReencodeResult copyFromCache(ReencodeCache cache, String cacheKey, JPEGReencodeArgs args, long inputSize, boolean inPlace, File outputFile, long startTime)
+    {
+        File entry = cache.get(cacheKey);
+        if (entry == null)
+            return null;
+
+        try
+        {
+            if (ReencodeCache.isNoGain(entry))
+            {
+                if (!inPlace)
+                    FileIOUtils.copy(args.getInputFile(), outputFile, args.shouldFsync());
+                return ReencodeResult.fromCache(inputSize, inputSize, /*originalKept*/ true, System.nanoTime() - startTime);
+            }
+
+            long outputSize = copyOutput(entry, args, inPlace, outputFile);
+            return ReencodeResult.fromCache(inputSize, outputSize, /*originalKept*/ false, System.nanoTime() - startTime);
+        }
+        catch (UncheckedIOException ex)
+        {
+            args.getWarningLogger().accept(ex);
+            if (outputFile.exists())
+                outputFile.delete();
+            return null;
+        }
+    }
+
+    //in place, through the temp file and an atomic rename. Returns the output size
+    private static long copyOutput(File sourceFile, JPEGReencodeArgs args, boolean inPlace, File outputFile)
+    {
+        //in place, replaceAtomically flushes the temp file itself
+        FileIOUtils.copy(sourceFile, outputFile, args.shouldFsync() && !inPlace);
+        long outputSize = outputFile.length();
+        if (inPlace)
+            FileIOUtils.replaceAtomically(outputFile, args.getOutputFile(), args.shouldFsync());
+        return outputSize;
+    }
+
+    //the reencode itself succeeded, a cache write error is only a warning
+    private static void putIntoCache(ReencodeCache cache, String cacheKey, File outputFile, JPEGReencodeArgs args)
+    {
+        try
+        {
+            if (outputFile != null)
+                cache.put(cacheKey, outputFile);
+            else cache.putNoGain(cacheKey);
+        }
+        catch (RuntimeException ex)
+        {
+            args.getWarningLogger().accept(ex);
+        }
+    }
+
+    //the cache key if the cache computed one (it already hashes the output options), otherwise the identity of the input file
+    private static String getFlightKey(NativeImplementation nativeImpl, JPEGReencodeArgs args, int minSavingPercent, String cacheKey)
+    {
+        if (cacheKey != null)
+            return cacheKey;
+
+        File inputFile = args.getInputFile();
+        String input;
+        try { input = inputFile.getCanonicalPath() + "\n" + inputFile.length() + "\n" + inputFile.lastModified(); }
+        catch (IOException ex) { return null; }
+
+        return input + "\n" + getOutputOptions(nativeImpl, args, minSavingPercent);
+    }
+
+    //null if the leader failed, or if its output could not be copied
+    private static ReencodeResult copyFromFlight(NativeImplementation nativeImpl, InFlightReencodes.Seat seat, JPEGReencodeArgs args, long inputSize, boolean inPlace, File outputFile, long startTime)
+    {
+        ReencodeResult leaderResult = awaitFlight(nativeImpl, seat, args, startTime);
+        if (leaderResult == null)
+            return null;
+
+        //for instance both callers reencode the same file in place
+        if (FileIOUtils.isSameFile(seat.getLeaderOutputFile(), args.getOutputFile()))
+            return ReencodeResult.shared(leaderResult, inputSize, leaderResult.getOutputSize(), System.nanoTime() - startTime);
+
+        try
+        {
+            if (leaderResult.isOriginalKept())
+            {
+                if (!inPlace)
+                    FileIOUtils.copy(args.getInputFile(), outputFile, args.shouldFsync());
+                return ReencodeResult.shared(leaderResult, inputSize, inputSize, System.nanoTime() - startTime);
+            }
+
+            long outputSize = copyOutput(seat.getSnapshotFile(), args, inPlace, outputFile);
+            return ReencodeResult.shared(leaderResult, inputSize, outputSize, System.nanoTime() - startTime);
+        }
+        catch (UncheckedIOException ex)
+        {
+            args.getWarningLogger().accept(ex);
+            if (outputFile.exists())
+                outputFile.delete();
+            return null;
+        }
+    }
+
+    //the follower's own cancellation signal, interrupt and timeout still apply while waiting for the leader
+    private static ReencodeResult awaitFlight(NativeImplementation nativeImpl, InFlightReencodes.Seat seat, JPEGReencodeArgs args, long startTime)
+    {
+        CancellationSignal cancellationSignal = args.getCancellationSignal();
+        Duration timeout = args.getTimeout();
+        while (true)
+        {
+            int resultCode;
+            if ((cancellationSignal != null && cancellationSignal.isCanceled()) || Thread.currentThread().isInterrupted())
+                resultCode = EXIT_CANCELLED;
+            else if (timeout != null && System.nanoTime() - startTime >= timeout.toNanos())
+                resultCode = EXIT_TIMEOUT;
+            else
+            {
+                try { return seat.await(FLIGHT_POLL_INTERVAL_MILLIS); }
+                catch (TimeoutException ex) { continue; }
+                //seen as a cancellation on the next iteration
+                catch (InterruptedException ex) { Thread.currentThread().interrupt(); continue; }
+            }
+
+            checkResultCode(nativeImpl, args, ReencodeControl.create(args), resultCode,
+                /*nativeErrorMessage*/ "While waiting for a concurrent reencode of the same input");
+        }
+    }
+
+    //the input file is opened here and read by the native side directly: no pipe, no pump, no copy
+    private static int reencodeFromFileDescriptors(NativeImplementation nativeImpl, JPEGReencodeArgs args, File outputFile, String[] errorMessage, ReencodeControl control)
+    {
+        //same as the native side opening the output path with "wb"
+        int outputMode = ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE;
+        try (ParcelFileDescriptor input = ParcelFileDescriptor.open(args.getInputFile(), ParcelFileDescriptor.MODE_READ_ONLY);
+             ParcelFileDescriptor output = ParcelFileDescriptor.open(outputFile, outputMode))
+        {
+            return nativeImpl.reencodeFileDescriptor(
+                /*inputFileDescriptor*/ input.getFd(),
+                /*outputFileDescriptor*/ output.getFd(),
+                /*errorMessage*/ errorMessage,
+                /*control*/ control.getBuffer(),
+                /*progressCallback*/ control.getProgressCallback(),
+                /*progressive*/ args.isProgressive(),
+                /*optimize*/ args.isOptimize(),
+                /*verbose*/ args.isVerbose()
             );
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    public static byte[] reencode(NativeImplementation nativeImpl, byte[] input, int inputOffset, int inputLength, JPEGReencodeArgs args)
+    {
+        return reencode(nativeImpl, NO_SESSION, input, inputOffset, inputLength, args);
+    }
+
+    public static byte[] reencode(NativeImplementation nativeImpl, long sessionHandle, byte[] input, int inputOffset, int inputLength, JPEGReencodeArgs args)
+    {
+        ReencodeJob job = ReencodeJob.start(nativeImpl, args);
+        try
+        {
+            if (inputOffset < 0 || inputLength < 0 || inputOffset + inputLength > input.length)
+                throw new IndexOutOfBoundsException("Invalid input range: offset="+inputOffset+", length="+inputLength+", size="+input.length);
 
-            if (!args.getOutputFile().exists())
-                throw new RuntimeException("Output file "+args.getOutputFile().getAbsolutePath()+" does not exist!");
+            byte[][] output = new byte[1][];
+            String[] errorMessage = new String[1];
+            ReencodeControl control = ReencodeControl.create(args);
+
+            int resultCode = nativeImpl.reencodeByteArray(
+                /*sessionHandle*/ sessionHandle,
+                /*input*/ input,
+                /*inputOffset*/ inputOffset,
+                /*inputLength*/ inputLength,
+                /*output*/ output,
+                /*errorMessage*/ errorMessage,
+                /*control*/ control.getBuffer(),
+                /*progressCallback*/ control.getProgressCallback(),
+                /*progressive*/ args.isProgressive(),
+                /*optimize*/ args.isOptimize(),
+                /*verbose*/ args.isVerbose()
+            );
 
             if (resultCode != EXIT_SUCCESS || args.isVerbose())
-            {
-                StringBuilder errorMessageBuilder = new StringBuilder(nativeImpl.toString());
-                errorMessageBuilder.append('\n').append(args);
+                checkResultCode(nativeImpl, args, control, resultCode, errorMessage[0]);
 
-                errorMessageBuilder.append("\n\nResult code: ");
-                if (resultCode == EXIT_SUCCESS) errorMessageBuilder.append("Success");
-                else if (resultCode == EXIT_WARNING) errorMessageBuilder.append("Warning");
-                else if (resultCode == EXIT_FAILURE) errorMessageBuilder.append("Failure");
-                else errorMessageBuilder.append(resultCode);
+            if (output[0] == null)
+                throw new RuntimeException("Output buffer is empty!");
 
-                if (errorFile.exists())
-                    errorMessageBuilder.append("\n\n").append(fileIOUtils.readFileToString(errorFile));
+            job.succeeded(inputLength, output[0].length);
+            return output[0];
+        }
+        catch (Throwable ex)
+        {
+            job.failed(ex);
+            args.getErrorLogger().accept(ex);
 
-                String errorMessage = errorMessageBuilder.toString();
-                if (resultCode == EXIT_FAILURE)
-                    throw new RuntimeException(errorMessage);
+            if (args.shouldThrowOnError())
+                throw ex;
 
-                if (errorMessage.contains("Corrupt JPEG data"))
-                    throw new RuntimeException(errorMessage);
+            return null;
+        }
+    }
+
+    public static ByteBuffer reencode(NativeImplementation nativeImpl, ByteBuffer input, JPEGReencodeArgs args)
+    {
+        return reencode(nativeImpl, NO_SESSION, input, args);
+    }
+
+    public static ByteBuffer reencode(NativeImplementation nativeImpl, long sessionHandle, ByteBuffer input, JPEGReencodeArgs args)
+    {
+        byte[] output;
+        if (input.hasArray())
+        {
+            output = reencode(nativeImpl, sessionHandle, input.array(), input.arrayOffset() + input.position(), input.remaining(), args);
+        }
+        else
+        {
+            byte[] inputBytes = new byte[input.remaining()];
+            input.duplicate().get(inputBytes);
+            output = reencode(nativeImpl, sessionHandle, inputBytes, 0, inputBytes.length, args);
+        }
+
+        return output != null ? ByteBuffer.wrap(output) : null;
+    }
+
+    public static int reencode(NativeImplementation nativeImpl, ByteBuffer input, ByteBuffer output, JPEGReencodeArgs args)
+    {
+        return reencode(nativeImpl, NO_SESSION, input, output, args);
+    }
+
+    public static int reencode(NativeImplementation nativeImpl, long sessionHandle, ByteBuffer input, ByteBuffer output, JPEGReencodeArgs args)
+    {
+        if (!input.isDirect() || !output.isDirect())
+        {
+            ByteBuffer reencoded = reencode(nativeImpl, sessionHandle, input, args);
+            if (reencoded == null)
+                return -1;
+
+            int outputSize = reencoded.remaining();
+            if (outputSize <= output.remaining())
+                output.put(reencoded);
+            return outputSize;
+        }
+
+        ReencodeJob job = ReencodeJob.start(nativeImpl, args);
+        try
+        {
+            int[] outputSize = new int[1];
+            String[] errorMessage = new String[1];
+            ReencodeControl control = ReencodeControl.create(args);
+
+            int resultCode = nativeImpl.reencodeDirectByteBuffer(
+                /*sessionHandle*/ sessionHandle,
+                /*input*/ input,
+                /*inputOffset*/ input.position(),
+                /*inputLength*/ input.remaining(),
+                /*output*/ output,
+                /*outputOffset*/ output.position(),
+                /*outputCapacity*/ output.remaining(),
+                /*outputSize*/ outputSize,
+                /*errorMessage*/ errorMessage,
+                /*control*/ control.getBuffer(),
+                /*progressCallback*/ control.getProgressCallback(),
+                /*progressive*/ args.isProgressive(),
+                /*optimize*/ args.isOptimize(),
+                /*verbose*/ args.isVerbose()
+            );
+
+            if (resultCode != EXIT_SUCCESS || args.isVerbose())
+                checkResultCode(nativeImpl, args, control, resultCode, errorMessage[0]);
 
-                if (resultCode == EXIT_WARNING || args.isVerbose())
-                    args.getWarningLogger().accept(new RuntimeException(errorMessage));
+            //too small an output buffer is not an error for the caller, it retries with outputSize bytes,
+            //but nothing was written: the metrics must not count it as a success
+            if (outputSize[0] <= output.remaining())
+            {
+                output.position(output.position() + outputSize[0]);
+                job.succeeded(input.remaining(), outputSize[0]);
+            }
+            else
+            {
+                job.failed(new BufferOverflowException());
             }
+
+            return outputSize[0];
         }
         catch (Throwable ex)
         {
+            job.failed(ex);
             args.getErrorLogger().accept(ex);
 
-            if (args.getOutputFile().exists())
-                args.getOutputFile().delete();
+            if (args.shouldThrowOnError())
+                throw ex;
+
+            return -1;
+        }
+    }
+
+    public static ReencodeResult reencode(NativeImplementation nativeImpl, ParcelFileDescriptor input, ParcelFileDescriptor output, JPEGReencodeArgs args)
+    {
+        ReencodeJob job = ReencodeJob.start(nativeImpl, args);
+        try
+        {
+            long startTime = System.nanoTime();
+            long inputSize = getRemainingSize(input.getFileDescriptor());
+            long outputStartPosition = getPosition(output.getFileDescriptor());
+
+            String[] errorMessage = new String[1];
+            ReencodeControl control = ReencodeControl.create(args);
+
+            int resultCode = nativeImpl.reencodeFileDescriptor(
+                /*inputFileDescriptor*/ input.getFd(),
+                /*outputFileDescriptor*/ output.getFd(),
+                /*errorMessage*/ errorMessage,
+                /*control*/ control.getBuffer(),
+                /*progressCallback*/ control.getProgressCallback(),
+                /*progressive*/ args.isProgressive(),
+                /*optimize*/ args.isOptimize(),
+                /*verbose*/ args.isVerbose()
+            );
+
+            if (resultCode != EXIT_SUCCESS || args.isVerbose())
+                checkResultCode(nativeImpl, args, control, resultCode, errorMessage[0]);
+
+            long outputEndPosition = getPosition(output.getFileDescriptor());
+            long outputSize = outputStartPosition != ReencodeResult.UNKNOWN_SIZE && outputEndPosition != ReencodeResult.UNKNOWN_SIZE
+                ? outputEndPosition - outputStartPosition : ReencodeResult.UNKNOWN_SIZE;
+
+            ReencodeResult result = control.getResult(inputSize, outputSize, /*originalKept*/ false, System.nanoTime() - startTime, /*pipeSetupWallTimeNanos*/ 0, /*pipeSetupCpuTimeNanos*/ 0);
+            job.succeeded(result.getInputSize(), result.getOutputSize());
+            return result;
+        }
+        catch (Throwable ex)
+        {
+            job.failed(ex);
+            args.getErrorLogger().accept(ex);
 
             if (args.shouldThrowOnError())
                 throw ex;
+
+            return null;
+        }
+    }
+
+    public static ReencodeResult reencode(NativeImplementation nativeImpl, FileDescriptor input, FileDescriptor output, JPEGReencodeArgs args)
+    {
+        ParcelFileDescriptor inputParcel = null, outputParcel = null;
+        try
+        {
+            inputParcel = ParcelFileDescriptor.dup(input);
+            outputParcel = ParcelFileDescriptor.dup(output);
         }
+        catch (IOException ex)
+        {
+            closeQuietly(inputParcel);
+            args.getErrorLogger().accept(ex);
+            if (args.shouldThrowOnError())
+                throw new RuntimeException(ex);
+            return null;
+        }
+
+        try { return reencode(nativeImpl, inputParcel, outputParcel, args); }
         finally
         {
-            if (intermediateFile.exists())
-                intermediateFile.delete();
+            closeQuietly(inputParcel);
+            closeQuietly(outputParcel);
+        }
+    }
+
+    public static ReencodeResult reencode(NativeImplementation nativeImpl, InputStream input, OutputStream output, JPEGReencodeArgs args)
+    {
+        ReencodeJob job = ReencodeJob.start(nativeImpl, args);
+        try
+        {
+            long startTime = System.nanoTime();
+            CountingInputStream countingInput = new CountingInputStream(input);
+            CountingOutputStream countingOutput = new CountingOutputStream(output);
+
+            String[] errorMessage = new String[1];
+            ReencodeControl control = ReencodeControl.create(args);
 
-            if (errorFile.exists())
-                errorFile.delete();
+            int resultCode = nativeImpl.reencodeStream(
+                /*input*/ countingInput,
+                /*output*/ countingOutput,
+                /*buffer*/ new byte[FileIOUtils.TRANSFER_BUFFER_SIZE],
+                /*errorMessage*/ errorMessage,
+                /*control*/ control.getBuffer(),
+                /*progressCallback*/ control.getProgressCallback(),
+                /*progressive*/ args.isProgressive(),
+                /*optimize*/ args.isOptimize(),
+                /*verbose*/ args.isVerbose()
+            );
+
+            if (resultCode != EXIT_SUCCESS || args.isVerbose())
+                checkResultCode(nativeImpl, args, control, resultCode, errorMessage[0]);
+
+            //the input size is what the codec consumed, it may read a bit past the end of the image
+            ReencodeResult result = control.getResult(countingInput.getCount(), countingOutput.getCount(), /*originalKept*/ false, System.nanoTime() - startTime,
+                /*pipeSetupWallTimeNanos*/ 0, /*pipeSetupCpuTimeNanos*/ 0);
+            job.succeeded(result.getInputSize(), result.getOutputSize());
+            return result;
         }
+        catch (Throwable ex)
+        {
+            job.failed(ex);
+            args.getErrorLogger().accept(ex);
+
+            //IOExceptions thrown by the streams are rethrown by the native code as they are
+            if (args.shouldThrowOnError())
+            {
+                if (ex instanceof IOException)
+                    throw new UncheckedIOException((IOException) ex);
+                throw ex;
+            }
+
+            return null;
+        }
+    }
+
+    //-1 if the file descriptor is not a regular file (pipe, socket)
+    private static long getPosition(FileDescriptor fileDescriptor)
+    {
+        try { return Os.lseek(fileDescriptor, 0, OsConstants.SEEK_CUR); }
+        catch (ErrnoException ex) { return ReencodeResult.UNKNOWN_SIZE; }
+    }
+
+    private static long getRemainingSize(FileDescriptor fileDescriptor)
+    {
+        try
+        {
+            StructStat stat = Os.fstat(fileDescriptor);
+            return OsConstants.S_ISREG(stat.st_mode) ? stat.st_size - Os.lseek(fileDescriptor, 0, OsConstants.SEEK_CUR) : ReencodeResult.UNKNOWN_SIZE;
+        }
+        catch (ErrnoException ex)
+        {
+            return ReencodeResult.UNKNOWN_SIZE;
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream
+    {
+        private long count = 0;
+
+        CountingInputStream(InputStream input)
+        {
+            super(input);
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException
+        {
+            int readBytes = in.read(buffer, offset, length);
+            if (readBytes > 0)
+                count += readBytes;
+            return readBytes;
+        }
+
+        long getCount()
+        {
+            return count;
+        }
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream
+    {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream output)
+        {
+            super(output);
+        }
+
+        //FilterOutputStream would write byte by byte
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException
+        {
+            out.write(buffer, offset, length);
+            count += length;
+        }
+
+        long getCount()
+        {
+            return count;
+        }
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor parcelFileDescriptor)
+    {
+        if (parcelFileDescriptor != null)
+        {
+            try { parcelFileDescriptor.close(); }
+            catch (IOException ignored) {}
+        }
+    }
+
+    private static void checkResultCode(NativeImplementation nativeImpl, JPEGReencodeArgs args, ReencodeControl control, int resultCode, String nativeErrorMessage)
+    {
+        //the progress callback streams the trace while reencoding, the rest is flushed here
+        control.drainTrace(/*includePendingLine*/ true);
+
+        StringBuilder errorMessageBuilder = new StringBuilder(nativeImpl.toString());
+        errorMessageBuilder.append('\n').append(args);
+
+        errorMessageBuilder.append("\n\nResult code: ");
+        if (resultCode == EXIT_SUCCESS) errorMessageBuilder.append("Success");
+        else if (resultCode == EXIT_WARNING) errorMessageBuilder.append("Warning");
+        else if (resultCode == EXIT_FAILURE) errorMessageBuilder.append("Failure");
+        else if (resultCode == EXIT_CANCELLED) errorMessageBuilder.append("Cancelled");
+        else if (resultCode == EXIT_TIMEOUT) errorMessageBuilder.append("Timeout");
+        else if (resultCode == EXIT_NO_GAIN) errorMessageBuilder.append("No gain");
+        else errorMessageBuilder.append(resultCode);
+
+        if (nativeErrorMessage != null)
+            errorMessageBuilder.append("\n\n").append(nativeErrorMessage);
+
+        String trace = control.getTrace();
+        if (trace != null && !control.hasTraceListener())
+            errorMessageBuilder.append("\n\nTrace:\n").append(trace);
+
+        String errorMessage = errorMessageBuilder.toString();
+        if (resultCode == EXIT_CANCELLED)
+            throw new OperationCanceledException(errorMessage);
+
+        if (resultCode == EXIT_TIMEOUT)
+            throw new ReencodeException(errorMessage, new TimeoutException("Reencode timed out after "+args.getTimeout().toMillis()+"ms"), resultCode, control);
+
+        if (resultCode == EXIT_FAILURE)
+            throw new ReencodeException(errorMessage, /*cause*/ null, resultCode, control);
+
+        //libjpeg only prints the first warning, the native error manager counts all of them by msg_code
+        if (control.getCorruptDataWarningCount() > 0)
+            throw new ReencodeException(errorMessage, /*cause*/ null, resultCode, control);
+
+        if (resultCode == EXIT_WARNING || args.isVerbose())
+            args.getWarningLogger().accept(new ReencodeException(errorMessage, /*cause*/ null, resultCode, control));
     }
 }
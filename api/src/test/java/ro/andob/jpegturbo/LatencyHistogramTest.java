@@ -0,0 +1,114 @@
+package ro.andob.jpegturbo;
+
+import org.junit.Test;
+import java.time.Duration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest
+{
+    //64 linear sub-buckets per power of two range
+    private static final double MAX_RELATIVE_ERROR = 1.0 / 64;
+
+    private static long micros(Duration duration)
+    {
+        return duration.toNanos() / 1000;
+    }
+
+    //the reported value is the top of the bucket, never below the exact value
+    private static void assertWithinError(long expectedMicros, Duration actual)
+    {
+        long actualMicros = micros(actual);
+        assertTrue("expected "+expectedMicros+"us, got "+actualMicros+"us",
+            actualMicros >= expectedMicros && actualMicros <= expectedMicros * (1 + MAX_RELATIVE_ERROR));
+    }
+
+    @Test
+    public void isEmptyBeforeRecording()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(Duration.ZERO, histogram.getP50());
+        assertEquals(Duration.ZERO, histogram.getMax());
+    }
+
+    @Test
+    public void isExactForSmallValues()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long value = 1; value <= 100; value++)
+            histogram.record(value * 1000);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(50, micros(histogram.getP50()));
+        assertEquals(99, micros(histogram.getP99()));
+        assertEquals(1, micros(histogram.getValueAtPercentile(0)));
+        assertEquals(100, micros(histogram.getValueAtPercentile(100)));
+    }
+
+    @Test
+    public void percentilesOfUniformDistributionAreWithinError()
+    {
+        //1us to 1s, one sample each: the value at percentile p is p% of 1s
+        LatencyHistogram histogram = new LatencyHistogram();
+        int count = 1_000_000;
+        for (long value = 1; value <= count; value++)
+            histogram.record(value * 1000);
+
+        assertEquals(count, histogram.getCount());
+        assertWithinError(500_000, histogram.getP50());
+        assertWithinError(990_000, histogram.getP99());
+        for (double percentile = 1; percentile <= 100; percentile++)
+            assertWithinError((long) (percentile / 100 * count), histogram.getValueAtPercentile(percentile));
+    }
+
+    @Test
+    public void percentilesOfSkewedDistributionAreWithinError()
+    {
+        //a long tail: 90 fast jobs at 2ms, 9 at 50ms, one at 3s
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 90; i++)
+            histogram.record(2_000_000);
+        for (int i = 0; i < 9; i++)
+            histogram.record(50_000_000);
+        histogram.record(3_000_000_000L);
+
+        assertWithinError(2_000, histogram.getP50());
+        assertWithinError(2_000, histogram.getValueAtPercentile(90));
+        assertWithinError(50_000, histogram.getValueAtPercentile(91));
+        assertWithinError(50_000, histogram.getP99());
+        assertEquals(3_000_000, micros(histogram.getValueAtPercentile(100)));
+        assertEquals(3_000_000, micros(histogram.getMax()));
+    }
+
+    @Test
+    public void neverReportsMoreThanTheMax()
+    {
+        //1001us falls into a bucket whose top is above it
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1_001_000);
+
+        assertEquals(1001, micros(histogram.getP50()));
+        assertEquals(1001, micros(histogram.getP99()));
+    }
+
+    @Test
+    public void clampsOutOfRangeValues()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5_000);
+        histogram.record(Long.MAX_VALUE);
+
+        assertEquals(2, histogram.getCount());
+        assertEquals(0, micros(histogram.getValueAtPercentile(50)));
+        assertEquals((1L << 36) - 1, micros(histogram.getMax()));
+        assertEquals((1L << 36) - 1, micros(histogram.getValueAtPercentile(100)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidPercentile()
+    {
+        new LatencyHistogram().getValueAtPercentile(100.5);
+    }
+}
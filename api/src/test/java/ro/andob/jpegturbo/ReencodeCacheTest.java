@@ -0,0 +1,175 @@
+package ro.andob.jpegturbo;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReencodeCacheTest
+{
+    //see ReencodeCache.MIN_ENTRY_SIZE
+    private static final long MIN_ENTRY_SIZE = 4096;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    //a new directory for each cache, ReencodeCache.open returns the same instance for the same directory
+    private ReencodeCache openCache(long maxSizeBytes) throws IOException
+    {
+        return ReencodeCache.open(temporaryFolder.newFolder(), maxSizeBytes);
+    }
+
+    private File createFile(int size) throws IOException
+    {
+        File file = temporaryFolder.newFile();
+        byte[] content = new byte[size];
+        Arrays.fill(content, (byte) 0xAB);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedFirst() throws IOException
+    {
+        ReencodeCache cache = openCache(3 * MIN_ENTRY_SIZE);
+        cache.put("a", createFile(100));
+        cache.put("b", createFile(100));
+        cache.put("c", createFile(100));
+
+        //a becomes the most recently used, b is now the eldest
+        assertNotNull(cache.get("a"));
+        cache.put("d", createFile(100));
+
+        assertEquals(3, cache.getEntryCount());
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("a"));
+        assertNotNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+    }
+
+    @Test
+    public void trimsWhenMaxSizeShrinks() throws IOException
+    {
+        ReencodeCache cache = openCache(3 * MIN_ENTRY_SIZE);
+        cache.put("a", createFile(100));
+        cache.put("b", createFile(100));
+        cache.put("c", createFile(100));
+
+        cache.setMaxSize(MIN_ENTRY_SIZE);
+
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(MIN_ENTRY_SIZE, cache.getSize());
+        assertNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    public void countsEachEntryAtLeastMinEntrySize() throws IOException
+    {
+        ReencodeCache cache = openCache(1024 * 1024);
+        cache.put("small", createFile(10));
+        assertEquals(MIN_ENTRY_SIZE, cache.getSize());
+
+        cache.put("big", createFile(10000));
+        assertEquals(MIN_ENTRY_SIZE + 10000, cache.getSize());
+
+        //an empty marker file
+        cache.putNoGain("nogain");
+        assertEquals(2 * MIN_ENTRY_SIZE + 10000, cache.getSize());
+        assertEquals(3, cache.getEntryCount());
+    }
+
+    @Test
+    public void replacingAnEntryDoesNotCountItTwice() throws IOException
+    {
+        ReencodeCache cache = openCache(1024 * 1024);
+        cache.put("a", createFile(10000));
+        File replacement = createFile(20000);
+        cache.put("a", replacement);
+
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(20000, cache.getSize());
+        assertArrayEquals(Files.readAllBytes(replacement.toPath()), Files.readAllBytes(cache.get("a").toPath()));
+    }
+
+    @Test
+    public void dropsAnEntryTooBigForTheWholeCache() throws IOException
+    {
+        ReencodeCache cache = openCache(2 * MIN_ENTRY_SIZE);
+        cache.put("a", createFile(100));
+        cache.put("huge", createFile((int) (2 * MIN_ENTRY_SIZE + 1)));
+
+        //nothing else was evicted to make room, and the temp file is gone
+        assertNull(cache.get("huge"));
+        assertNotNull(cache.get("a"));
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(MIN_ENTRY_SIZE, cache.getSize());
+        assertEquals(1, cache.get("a").getParentFile().list().length);
+    }
+
+    @Test
+    public void tellsNoGainEntriesApart() throws IOException
+    {
+        ReencodeCache cache = openCache(1024 * 1024);
+        cache.put("output", createFile(100));
+        cache.putNoGain("nogain");
+
+        assertFalse(ReencodeCache.isNoGain(cache.get("output")));
+        assertTrue(ReencodeCache.isNoGain(cache.get("nogain")));
+    }
+
+    @Test
+    public void forgetsAnEntryDeletedFromOutside() throws IOException
+    {
+        ReencodeCache cache = openCache(1024 * 1024);
+        cache.put("a", createFile(100));
+        assertTrue(cache.get("a").delete());
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getEntryCount());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void reloadsTheAccessOrderFromLastModifiedTimes() throws IOException
+    {
+        //entries left by a previous process, b is the least recently used
+        File directory = temporaryFolder.newFolder();
+        File a = new File(directory, "a.jpg");
+        File b = new File(directory, "b.jpg");
+        File c = new File(directory, "c.nogain");
+        File unfinishedWrite = new File(directory, ".d.jpg.0123456789abcdef.tmp");
+        Files.write(a.toPath(), new byte[100]);
+        Files.write(b.toPath(), new byte[100]);
+        Files.write(c.toPath(), new byte[0]);
+        Files.write(unfinishedWrite.toPath(), new byte[100]);
+        assertTrue(a.setLastModified(3_000_000));
+        assertTrue(b.setLastModified(1_000_000));
+        assertTrue(c.setLastModified(2_000_000));
+
+        ReencodeCache cache = ReencodeCache.open(directory, 3 * MIN_ENTRY_SIZE);
+        assertEquals(3, cache.getEntryCount());
+        assertEquals(3 * MIN_ENTRY_SIZE, cache.getSize());
+        assertFalse(unfinishedWrite.exists());
+
+        cache.setMaxSize(2 * MIN_ENTRY_SIZE);
+        assertFalse(b.exists());
+        assertTrue(a.exists());
+        assertTrue(c.exists());
+
+        cache.setMaxSize(MIN_ENTRY_SIZE);
+        assertFalse(c.exists());
+        assertTrue(a.exists());
+    }
+}
@@ -1,12 +1,22 @@
 package ro.andob.jpegturbo;
 
-import java.io.File;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import android.util.Log;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.os.Debug;
+import android.os.ParcelFileDescriptor;
 import io.github.awxkee.jpegli.coder.IccStrategy;
 import io.github.awxkee.jpegli.coder.JpegliCoder;
 import io.github.awxkee.jpegli.coder.Scalar;
@@ -16,29 +26,399 @@ final class JpegliNative
 {
     static { System.loadLibrary(BuildConfig.NATIVE_LIBRARY_NAME); }
 
-    static final int EXIT_SUCCESS = 0, EXIT_FAILURE = 1;
+    static final int EXIT_SUCCESS = 0, EXIT_FAILURE = 1, EXIT_CANCELLED = 3, EXIT_TIMEOUT = 4, EXIT_NO_GAIN = 5;
 
-    static int reencode(String inputFilePath, String outputFilePath, String errorFilePath,
-                               boolean progressive, boolean optimize, boolean verbose)
+    //layout shared with ReencodeControl.java and struct reencode_control in Bindings.c
+    private static final int CONTROL_CANCELLED_OFFSET = 0, CONTROL_STAGE_OFFSET = 8,
+        CONTROL_COMPLETED_PASSES_OFFSET = 12, CONTROL_TOTAL_PASSES_OFFSET = 16, CONTROL_TIMEOUT_MILLIS_OFFSET = 20,
+        CONTROL_MAX_PIXELS_OFFSET = 48, CONTROL_MAX_MEMORY_BYTES_OFFSET = 56,
+        CONTROL_READ_TIME_OFFSET = 72, CONTROL_ENCODE_TIME_OFFSET = 88, CONTROL_MARKERS_TIME_OFFSET = 104,
+        CONTROL_WRITE_FINGERPRINT_OFFSET = 164, CONTROL_MAX_OUTPUT_BYTES_OFFSET = 176;
+    private static final String FINGERPRINT_PREFIX = "Reencoded by ro.andob.jpegturbo";
+    private static final int STAGE_DECODE = 0, STAGE_ENCODE = 1;
+    private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+    static int reencode(String inputFilePath, String outputFilePath, String[] errorMessage,
+                        ByteBuffer control, Runnable progressCallback,
+                        boolean progressive, boolean optimize, boolean verbose)
     {
-        try (FileOutputStream outputStream = new FileOutputStream(outputFilePath))
+        try (InputStream inputStream = new FileInputStream(inputFilePath);
+             OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(outputFilePath), TRANSFER_BUFFER_SIZE))
         {
-            Bitmap inputBitmap = BitmapFactory.decodeFile(inputFilePath);
-            JpegliCoder.Companion.compress(inputBitmap, 90, IccStrategy.DEFAULT,
-                Scalar.Companion.getZERO(), progressive, outputStream);
+            return reencodeStream(inputStream, outputStream, /*buffer*/ null, errorMessage, control, progressCallback, progressive, optimize, verbose);
         }
         catch (Throwable ex)
         {
-            String exceptionAsString = String.format("%s\n%s", ex.getMessage(), Log.getStackTraceString(ex));
-            try { Files.write(new File(errorFilePath).toPath(), exceptionAsString.getBytes()); }
-            catch (IOException ignored) {}
+            errorMessage[0] = String.format("%s\n%s", ex.getMessage(), Log.getStackTraceString(ex));
             return EXIT_FAILURE;
         }
+    }
+
+    static int reencodeByteArray(long sessionHandle, byte[] input, int inputOffset, int inputLength, byte[][] output, String[] errorMessage,
+                                 ByteBuffer control, Runnable progressCallback,
+                                 boolean progressive, boolean optimize, boolean verbose)
+    {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        int resultCode = reencodeStream(new ByteArrayInputStream(input, inputOffset, inputLength), outputStream,
+            /*buffer*/ null, errorMessage, control, progressCallback, progressive, optimize, verbose);
+        if (resultCode == EXIT_SUCCESS)
+            output[0] = outputStream.toByteArray();
+        return resultCode;
+    }
+
+    static int reencodeDirectByteBuffer(long sessionHandle, ByteBuffer input, int inputOffset, int inputLength,
+                                        ByteBuffer output, int outputOffset, int outputCapacity,
+                                        int[] outputSize, String[] errorMessage,
+                                        ByteBuffer control, Runnable progressCallback,
+                                        boolean progressive, boolean optimize, boolean verbose)
+    {
+        byte[] inputBytes = new byte[inputLength];
+        ByteBuffer inputView = input.duplicate();
+        inputView.position(inputOffset);
+        inputView.get(inputBytes);
+
+        byte[][] outputBytes = new byte[1][];
+        int resultCode = reencodeByteArray(sessionHandle, inputBytes, 0, inputLength, outputBytes, errorMessage, control, progressCallback, progressive, optimize, verbose);
+        if (resultCode == EXIT_SUCCESS)
+        {
+            outputSize[0] = outputBytes[0].length;
+            if (outputBytes[0].length <= outputCapacity)
+            {
+                ByteBuffer outputView = output.duplicate();
+                outputView.position(outputOffset);
+                outputView.put(outputBytes[0]);
+            }
+        }
+
+        return resultCode;
+    }
+
+    static int reencodeFileDescriptor(int inputFileDescriptor, int outputFileDescriptor, String[] errorMessage,
+                                      ByteBuffer control, Runnable progressCallback,
+                                      boolean progressive, boolean optimize, boolean verbose)
+    {
+        //fromFd duplicates the file descriptors, the originals are still owned (and closed) by the caller
+        try (ParcelFileDescriptor inputParcel = ParcelFileDescriptor.fromFd(inputFileDescriptor);
+             ParcelFileDescriptor outputParcel = ParcelFileDescriptor.fromFd(outputFileDescriptor);
+             FileInputStream inputStream = new FileInputStream(inputParcel.getFileDescriptor());
+             OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(outputParcel.getFileDescriptor()), TRANSFER_BUFFER_SIZE))
+        {
+            return reencodeStream(inputStream, outputStream, /*buffer*/ null, errorMessage, control, progressCallback, progressive, optimize, verbose);
+        }
+        catch (Throwable ex)
+        {
+            errorMessage[0] = String.format("%s\n%s", ex.getMessage(), Log.getStackTraceString(ex));
+            return EXIT_FAILURE;
+        }
+    }
+
+    //every entry point ends up here. Only the markers up to SOF are held in memory, the rest of the input is streamed
+    //into BitmapFactory, and the encoded image is streamed to the output, stopping as soon as it gets over the max output size.
+    //the buffer is not needed, BitmapFactory buffers its input itself
+    static int reencodeStream(InputStream input, OutputStream output, byte[] buffer, String[] errorMessage,
+                              ByteBuffer control, Runnable progressCallback,
+                              boolean progressive, boolean optimize, boolean verbose)
+    {
+        long deadlineNanos = control != null && control.getInt(CONTROL_TIMEOUT_MILLIS_OFFSET) > 0
+            ? System.nanoTime() + control.getInt(CONTROL_TIMEOUT_MILLIS_OFFSET) * 1_000_000L : 0;
+
+        try
+        {
+            int controlResultCode = reportProgress(control, progressCallback, STAGE_DECODE, deadlineNanos);
+            if (controlResultCode != EXIT_SUCCESS)
+                return controlResultCode;
+
+            long startWallTime = System.nanoTime(), startCpuTime = Debug.threadCpuTimeNanos();
+            InputHeader header = InputHeader.read(input);
+            String limitErrorMessage = checkResourceLimits(control, header);
+            if (limitErrorMessage != null)
+            {
+                errorMessage[0] = limitErrorMessage;
+                return EXIT_FAILURE;
+            }
+            Bitmap inputBitmap = BitmapFactory.decodeStream(new SequenceInputStream(
+                new ByteArrayInputStream(header.bytes, 0, header.length), input));
+            if (inputBitmap == null)
+                throw new IOException("Cannot decode the input image");
+            long[] readTime = getElapsedTime(startWallTime, startCpuTime);
+
+            controlResultCode = reportProgress(control, progressCallback, STAGE_ENCODE, deadlineNanos);
+            if (controlResultCode != EXIT_SUCCESS)
+                return controlResultCode;
+            startWallTime = System.nanoTime(); startCpuTime = Debug.threadCpuTimeNanos();
+            long maxOutputBytes = control != null ? control.getLong(CONTROL_MAX_OUTPUT_BYTES_OFFSET) : 0;
+            boolean shouldWriteFingerprint = control != null && control.getInt(CONTROL_WRITE_FINGERPRINT_OFFSET) != 0;
+            MarkerSplicingOutputStream imageOutputStream = new MarkerSplicingOutputStream(output, header, maxOutputBytes, shouldWriteFingerprint, progressive, optimize);
+            try
+            {
+                JpegliCoder.Companion.compress(inputBitmap, 90, IccStrategy.DEFAULT,
+                    Scalar.Companion.getZERO(), progressive, imageOutputStream);
+                output.flush();
+            }
+            catch (Throwable ex)
+            {
+                //the encoder may wrap the exception thrown by the output stream
+                if (imageOutputStream.isOverLimit())
+                    return EXIT_NO_GAIN;
+                throw ex;
+            }
+            long[] encodeTime = getElapsedTime(startWallTime, startCpuTime);
 
+            if (control != null)
+            {
+                //markers are written in the middle of the encoder's output, their time is moved out of the encode time
+                long[] markersTime = imageOutputStream.getMarkersTime();
+                encodeTime[0] -= markersTime[0];
+                encodeTime[1] -= markersTime[1];
+                putStageTime(control, CONTROL_READ_TIME_OFFSET, readTime);
+                putStageTime(control, CONTROL_ENCODE_TIME_OFFSET, encodeTime);
+                putStageTime(control, CONTROL_MARKERS_TIME_OFFSET, markersTime);
+            }
+        }
+        catch (Throwable ex)
+        {
+            errorMessage[0] = String.format("%s\n%s", ex.getMessage(), Log.getStackTraceString(ex));
+            return EXIT_FAILURE;
+        }
+
+        return EXIT_SUCCESS;
+    }
+
+    //BitmapFactory and JpegliCoder have no progress hooks, each stage is reported (and can be aborted) once, as a single pass
+    private static int reportProgress(ByteBuffer control, Runnable progressCallback, int stage, long deadlineNanos)
+    {
+        if (control == null)
+            return EXIT_SUCCESS;
+
+        if (progressCallback != null)
+        {
+            control.putInt(CONTROL_STAGE_OFFSET, stage);
+            control.putInt(CONTROL_COMPLETED_PASSES_OFFSET, 0);
+            control.putInt(CONTROL_TOTAL_PASSES_OFFSET, 1);
+            progressCallback.run();
+        }
+
+        if (control.getInt(CONTROL_CANCELLED_OFFSET) != 0)
+            return EXIT_CANCELLED;
+        if (deadlineNanos != 0 && System.nanoTime() - deadlineNanos >= 0)
+            return EXIT_TIMEOUT;
         return EXIT_SUCCESS;
     }
 
-    static native int mergeExifAndJpeg(String inputExifFilePath, String inputImageFilePath, String outputFilePath);
+    //{ wall nanos, cpu nanos }
+    private static long[] getElapsedTime(long startWallTime, long startCpuTime)
+    {
+        return new long[] { System.nanoTime() - startWallTime, Debug.threadCpuTimeNanos() - startCpuTime };
+    }
+
+    private static void putStageTime(ByteBuffer control, int offset, long[] stageTime)
+    {
+        control.putLong(offset, stageTime[0]);
+        control.putLong(offset + 8, stageTime[1]);
+    }
+
+    //there is no scan level access, the scan limit is not supported
+    private static String checkResourceLimits(ByteBuffer control, InputHeader header)
+    {
+        if (control == null)
+            return null;
+
+        long maxPixels = control.getLong(CONTROL_MAX_PIXELS_OFFSET);
+        long maxMemoryBytes = control.getLong(CONTROL_MAX_MEMORY_BYTES_OFFSET);
+        if (maxPixels <= 0 && maxMemoryBytes <= 0)
+            return null;
+
+        long pixels = (long) header.width * header.height;
+        if (maxPixels > 0 && pixels > maxPixels)
+            return "Image has "+header.width+" x "+header.height+" pixels, more than the limit of "+maxPixels+" pixels";
+
+        //the input is decoded into an ARGB_8888 Bitmap
+        if (maxMemoryBytes > 0 && pixels * 4 > maxMemoryBytes)
+            return "Image needs at least "+(pixels * 4)+" bytes, more than the limit of "+maxMemoryBytes+" bytes";
+
+        return null;
+    }
+
+    //the markers of the input up to and including SOF, read ahead of BitmapFactory:
+    //they hold the EXIF segment and the image size. BitmapFactory gets them back in front of the rest of the input
+    private static final class InputHeader
+    {
+        private byte[] bytes = new byte[1024];
+        private int length = 0;
+        private int exifOffset = 0, exifLength = 0;
+        private int width = 0, height = 0;
+
+        static InputHeader read(InputStream input) throws IOException
+        {
+            //JPEG specification - see https://stackoverflow.com/a/48814876
+            InputHeader header = new InputHeader();
+            if (!header.readBytes(input, 2) || (header.bytes[0] & 0xFF) != 0xFF || (header.bytes[1] & 0xFF) != 0xD8)
+                return header;
+
+            while (header.readBytes(input, 2) && (header.bytes[header.length-2] & 0xFF) == 0xFF)
+            {
+                int marker = header.bytes[header.length-1] & 0xFF;
+                //standalone markers, or the image data: there is no SOF
+                if (marker == 0xD9 || marker == 0xDA || (marker >= 0xD0 && marker <= 0xD7) || marker == 0x01 || marker == 0xFF)
+                    return header;
+
+                int segmentOffset = header.length - 2;
+                if (!header.readBytes(input, 2))
+                    return header;
+                int segmentLength = ((header.bytes[header.length-2] & 0xFF) << 8) | (header.bytes[header.length-1] & 0xFF);
+                if (segmentLength < 2 || !header.readBytes(input, segmentLength - 2))
+                    return header;
+
+                //only an APP1 right after SOI is copied to the output
+                if (marker == 0xE1 && segmentOffset == 2)
+                {
+                    header.exifOffset = segmentOffset;
+                    header.exifLength = 2 + segmentLength;
+                }
+
+                //SOF0..SOF15, except DHT, JPG and DAC: precision, height, width
+                if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC && segmentLength >= 7)
+                {
+                    header.height = ((header.bytes[segmentOffset+5] & 0xFF) << 8) | (header.bytes[segmentOffset+6] & 0xFF);
+                    header.width = ((header.bytes[segmentOffset+7] & 0xFF) << 8) | (header.bytes[segmentOffset+8] & 0xFF);
+                    return header;
+                }
+            }
+
+            return header;
+        }
+
+        //false on EOF, what was read is kept anyway, BitmapFactory reports the truncated image
+        private boolean readBytes(InputStream input, int count) throws IOException
+        {
+            if (length + count > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + count));
+
+            while (count > 0)
+            {
+                int readBytes = input.read(bytes, length, count);
+                if (readBytes == -1)
+                    return false;
+                length += readBytes;
+                count -= readBytes;
+            }
+
+            return true;
+        }
+    }
+
+    //jpegli encodes from a Bitmap, so EXIF is lost: it is written back right after the encoder's SOI.
+    //the other markers of the input are lost as well, including a previous fingerprint.
+    //JpegliCoder has no other way to be stopped early, writing over the max output size fails the encoder
+    private static final class MarkerSplicingOutputStream extends OutputStream
+    {
+        private final OutputStream output;
+        private final InputHeader header;
+        private final long maxOutputBytes;
+        private final boolean shouldWriteFingerprint;
+        private final boolean progressive;
+        private final boolean optimize;
+        private long writtenBytes = 0;
+        private boolean wereMarkersWritten = false;
+        private boolean isOverLimit = false;
+        private final long[] markersTime = new long[2];
+
+        MarkerSplicingOutputStream(OutputStream output, InputHeader header, long maxOutputBytes, boolean shouldWriteFingerprint, boolean progressive, boolean optimize)
+        {
+            this.output = output;
+            this.header = header;
+            this.maxOutputBytes = maxOutputBytes;
+            this.shouldWriteFingerprint = shouldWriteFingerprint;
+            this.progressive = progressive;
+            this.optimize = optimize;
+        }
+
+        @Override
+        public void write(int value) throws IOException
+        {
+            write(new byte[] { (byte) value }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException
+        {
+            //the encoder's SOI goes first
+            if (!wereMarkersWritten && writtenBytes < 2)
+            {
+                int soiBytes = (int) Math.min(length, 2 - writtenBytes);
+                writeLimited(buffer, offset, soiBytes);
+                offset += soiBytes;
+                length -= soiBytes;
+            }
+
+            if (!wereMarkersWritten && writtenBytes == 2)
+            {
+                wereMarkersWritten = true;
+                long startWallTime = System.nanoTime(), startCpuTime = Debug.threadCpuTimeNanos();
+                writeLimited(header.bytes, header.exifOffset, header.exifLength);
+                if (shouldWriteFingerprint)
+                    writeFingerprint();
+                long[] elapsedTime = getElapsedTime(startWallTime, startCpuTime);
+                markersTime[0] += elapsedTime[0];
+                markersTime[1] += elapsedTime[1];
+            }
+
+            writeLimited(buffer, offset, length);
+        }
+
+        //same COM marker as Bindings.c writes, with the requested options, recognized by the header probe and Fingerprint.java
+        private void writeFingerprint() throws IOException
+        {
+            byte[] fingerprint = (FINGERPRINT_PREFIX+" ("+getLibraryName()+(progressive ? ", progressive" : "")+(optimize ? ", optimized" : "")+")")
+                .getBytes(StandardCharsets.US_ASCII);
+            int segmentLength = 2 + fingerprint.length;
+            writeLimited(new byte[] { (byte) 0xFF, (byte) 0xFE, (byte) (segmentLength >> 8), (byte) (segmentLength & 0xFF) }, 0, 4);
+            writeLimited(fingerprint, 0, fingerprint.length);
+        }
+
+        private void writeLimited(byte[] buffer, int offset, int length) throws IOException
+        {
+            if (length == 0)
+                return;
+
+            writtenBytes += length;
+            if (maxOutputBytes > 0 && writtenBytes > maxOutputBytes)
+            {
+                isOverLimit = true;
+                throw new IOException("Output is bigger than "+maxOutputBytes+" bytes");
+            }
+
+            output.write(buffer, offset, length);
+        }
+
+        boolean isOverLimit()
+        {
+            return isOverLimit;
+        }
+
+        long[] getMarkersTime()
+        {
+            return markersTime;
+        }
+    }
+
+    //also the name the fingerprint is written with
+    static String getLibraryName()
+    {
+        return BuildConfig.NATIVE_LIBRARY_NAME;
+    }
+
+    //BitmapFactory and JpegliCoder keep no state between images, there is nothing to reuse
+    static long createSession()
+    {
+        return 1;
+    }
+
+    static void destroySession(long sessionHandle) {}
 
     static native int createPipeFile(String pipeFilePath);
+
+    //the library is built from Bindings.c against libjpeg-turbo, the header probe is the same as JPEGTurboNative's
+    static native int probe(String inputFilePath, ByteBuffer input, int inputOffset, int inputLength,
+                            String[] errorMessage, ByteBuffer headerInfo);
 }
@@ -1,15 +1,48 @@
 package ro.andob.jpegturbo;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import ro.andob.jpegturbo.mozjpeg_native.BuildConfig;
 
 final class MozjpegNative
 {
     static { System.loadLibrary(BuildConfig.NATIVE_LIBRARY_NAME); }
 
-    static native int reencode(String inputFilePath, String outputFilePath, String errorFilePath,
+    static native int reencode(String inputFilePath, String outputFilePath, String[] errorMessage,
+                               ByteBuffer control, Runnable progressCallback,
                                boolean progressive, boolean optimize, boolean verbose);
 
-    static native int mergeExifAndJpeg(String inputExifFilePath, String inputImageFilePath, String outputFilePath);
+    static native int reencodeByteArray(long sessionHandle, byte[] input, int inputOffset, int inputLength, byte[][] output, String[] errorMessage,
+                                        ByteBuffer control, Runnable progressCallback,
+                                        boolean progressive, boolean optimize, boolean verbose);
+
+    static native int reencodeDirectByteBuffer(long sessionHandle, ByteBuffer input, int inputOffset, int inputLength,
+                                               ByteBuffer output, int outputOffset, int outputCapacity,
+                                               int[] outputSize, String[] errorMessage,
+                                               ByteBuffer control, Runnable progressCallback,
+                                               boolean progressive, boolean optimize, boolean verbose);
+
+    static native int reencodeFileDescriptor(int inputFileDescriptor, int outputFileDescriptor, String[] errorMessage,
+                                             ByteBuffer control, Runnable progressCallback,
+                                             boolean progressive, boolean optimize, boolean verbose);
+
+    static native int reencodeStream(InputStream input, OutputStream output, byte[] buffer, String[] errorMessage,
+                                     ByteBuffer control, Runnable progressCallback,
+                                     boolean progressive, boolean optimize, boolean verbose);
+
+    static native long createSession();
+
+    static native void destroySession(long sessionHandle);
 
     static native int createPipeFile(String pipeFilePath);
+
+    static native int probe(String inputFilePath, ByteBuffer input, int inputOffset, int inputLength,
+                            String[] errorMessage, ByteBuffer headerInfo);
+
+    //also the PACKAGE_NAME the native fingerprint is written with, see native/CMakeLists.txt
+    static String getLibraryName()
+    {
+        return BuildConfig.NATIVE_LIBRARY_NAME;
+    }
 }
@@ -4,48 +4,1184 @@
 #include <cdjpeg.h>
 #include <sys/types.h>
 #include <sys/stat.h>
+#include <unistd.h>
+#include <time.h>
+#include <limits.h>
+#include <stdarg.h>
+
+//next to EXIT_SUCCESS, EXIT_FAILURE and EXIT_WARNING from cdjpeg.h
+#define EXIT_CANCELLED 3
+#define EXIT_TIMEOUT 4
+#define EXIT_NO_GAIN 5
+
+//shared with ReencodeControl.java, a direct ByteBuffer in native byte order
+//libjpeg msg_code values, the first ones are kept, num_warnings has the total count
+#define MAX_WARNING_CODES 8
+
+struct stage_time
+{
+    jlong wall_nanos;
+    jlong cpu_nanos;
+};
+
+struct reencode_control
+{
+    jint cancelled;
+    jint progress_interval_millis;
+    jint stage;
+    jint completed_passes;
+    jint total_passes;
+    jint timeout_millis;
+    jlong pass_counter;
+    jlong pass_limit;
+    jint max_scans;
+    jint padding;
+    jlong max_pixels;
+    jlong max_memory_bytes;
+    jint num_warnings;
+    jint padding_2;
+    struct stage_time read_time;
+    struct stage_time encode_time;
+    struct stage_time markers_time;
+    jint error_code;
+    jint corrupt_data_warnings;
+    jint warning_codes[MAX_WARNING_CODES];
+    //verbose trace ring buffer, its trace_capacity bytes follow the struct in the same ByteBuffer.
+    //trace_written counts every byte ever written, the reader derives the start and the overwritten bytes from it
+    jint trace_capacity;
+    //a COM marker with FINGERPRINT_PREFIX, describing this reencode, is added to the output. The one of the input is never copied
+    jint write_fingerprint;
+    jlong trace_written;
+    //encoding is aborted with EXIT_NO_GAIN as soon as the output grows over this size. 0 means no limit
+    jlong max_output_bytes;
+    //mozjpeg only, see MozjpegOptions.java. Without mozjpeg_options, the library defaults are used
+    jint mozjpeg_options;
+    jint compress_profile;
+    jint optimize_scans;
+    jint dc_scan_opt_mode;
+};
+
+#define STAGE_DECODE 0
+#define STAGE_ENCODE 1
+
+//values of reencode_control.compress_profile, same order as MozjpegOptions.Profile
+#define COMPRESS_PROFILE_FASTEST 0
+#define COMPRESS_PROFILE_MAX_COMPRESSION 1
 
 struct transform_args
 {
-    const char* input_file_path;
-    const char* output_file_path;
-    const char* error_file_path;
-    boolean progressive;
-    boolean optimize;
-    boolean verbose;
+    const char* input_file_path;
+    FILE* input_file;
+    const unsigned char* input_buffer;
+    unsigned long input_buffer_size;
+    const char* output_file_path;
+    FILE* output_file;
+    unsigned char** output_buffer;
+    unsigned long* output_buffer_size;
+    unsigned char* output_fixed_buffer;
+    unsigned long output_fixed_buffer_size;
+    unsigned long* output_size;
+    char** error_buffer;
+    size_t* error_buffer_size;
+    JNIEnv* env;
+    jobject input_stream;
+    jobject output_stream;
+    jbyteArray stream_buffer;
+    struct reencode_control* control;
+    jobject progress_callback;
+    boolean progressive;
+    boolean optimize;
+    boolean verbose;
+};
+
+struct jpeg_error_mgr_mod
+{
+    struct jpeg_error_mgr pub;
+    void (*std_emit_message)(j_common_ptr cinfo, int msg_level);
+    FILE* error_file;
+    struct reencode_control* control;
+    jmp_buf jump_buffer;
+};
+
+static boolean is_corrupt_data_warning(int msg_code)
+{
+    switch (msg_code)
+    {
+        case JWRN_ARITH_BAD_CODE:
+        case JWRN_BOGUS_ICC:
+        case JWRN_EXTRANEOUS_DATA:
+        case JWRN_HIT_MARKER:
+        case JWRN_HUFF_BAD_CODE:
+        case JWRN_MUST_RESYNC:
+            return TRUE;
+        default:
+            return FALSE;
+    }
+}
+
+#pragma region Trace ring buffer
+static boolean has_trace_buffer(struct reencode_control* control)
+{
+    return control != NULL && control->trace_capacity > 0;
+}
+
+//oldest bytes are overwritten, no allocation and no I/O on the hot path
+static void append_trace(struct reencode_control* control, const char* text, size_t length)
+{
+    if (!has_trace_buffer(control))
+        return;
+
+    char* data = (char*) (control + 1);
+    size_t capacity = (size_t) control->trace_capacity;
+    const char* source = length > capacity ? text + length - capacity : text;
+    size_t source_length = length > capacity ? capacity : length;
+
+    size_t position = (size_t) ((control->trace_written + (jlong) (length - source_length)) % capacity);
+    size_t first_chunk_length = capacity - position < source_length ? capacity - position : source_length;
+    memcpy(data + position, source, first_chunk_length);
+    memcpy(data, source + first_chunk_length, source_length - first_chunk_length);
+    control->trace_written += (jlong) length;
+}
+
+static void trace_printf(struct reencode_control* control, const char* format, ...)
+{
+    if (!has_trace_buffer(control))
+        return;
+
+    //JCOPYRIGHT is the longest line
+    char buffer[1024];
+    va_list args;
+    va_start(args, format);
+    int length = vsnprintf(buffer, sizeof(buffer), format, args);
+    va_end(args);
+
+    if (length > 0)
+        append_trace(control, buffer, length < (int) sizeof(buffer) ? (size_t) length : sizeof(buffer) - 1);
+}
+#pragma endregion
+
+#define JMSG_LENGTH_MAX  200
+
+static void output_message_mod(j_common_ptr cinfo)
+{
+    char buffer[JMSG_LENGTH_MAX];
+    (*cinfo->err->format_message) (cinfo, buffer);
+
+    struct jpeg_error_mgr_mod* err_mod = (struct jpeg_error_mgr_mod*) cinfo->err;
+    if (err_mod->error_file != NULL)
+        fprintf(err_mod->error_file, "%s\n", buffer);
+    trace_printf(err_mod->control, "%s\n", buffer);
+}
+
+static void trace_message(j_common_ptr cinfo)
+{
+    char buffer[JMSG_LENGTH_MAX];
+    (*cinfo->err->format_message) (cinfo, buffer);
+
+    struct jpeg_error_mgr_mod* err_mod = (struct jpeg_error_mgr_mod*) cinfo->err;
+    trace_printf(err_mod->control, "%s\n", buffer);
+}
+
+//warnings have msg_level -1, trace messages 0 and above
+static void emit_message_mod(j_common_ptr cinfo, int msg_level)
+{
+    struct jpeg_error_mgr_mod* err_mod = (struct jpeg_error_mgr_mod*) cinfo->err;
+    struct reencode_control* control = err_mod->control;
+
+    //in verbose mode trace messages only go to the ring buffer, the error message keeps errors and warnings
+    if (msg_level >= 0 && has_trace_buffer(control))
+    {
+        if (cinfo->err->trace_level >= msg_level)
+            trace_message(cinfo);
+        return;
+    }
+
+    if (msg_level < 0 && control != NULL)
+    {
+        int msg_code = cinfo->err->msg_code;
+        if (control->num_warnings < MAX_WARNING_CODES)
+            control->warning_codes[control->num_warnings] = msg_code;
+        if (is_corrupt_data_warning(msg_code))
+            control->corrupt_data_warnings++;
+        control->num_warnings++;
+
+        //libjpeg prints only the first warning, the trace gets all of them
+        if (cinfo->err->num_warnings > 0 && cinfo->err->trace_level < 3)
+            trace_message(cinfo);
+    }
+
+    //counts num_warnings and prints the first warning
+    (*err_mod->std_emit_message) (cinfo, msg_level);
+}
+
+static void error_exit_mod(j_common_ptr cinfo)
+{
+    (*cinfo->err->output_message) (cinfo);
+
+    struct jpeg_error_mgr_mod* err_mod = (struct jpeg_error_mgr_mod*) cinfo->err;
+    if (err_mod->control != NULL)
+        err_mod->control->error_code = cinfo->err->msg_code;
+    longjmp(err_mod->jump_buffer, EXIT_FAILURE);
+}
+
+static struct jpeg_error_mgr* init_error_manager(struct jpeg_error_mgr_mod* error_manager, FILE* error_file, struct reencode_control* control)
+{
+    jpeg_std_error(&error_manager->pub);
+    error_manager->std_emit_message = error_manager->pub.emit_message;
+    error_manager->error_file = error_file;
+    error_manager->control = control;
+    error_manager->pub.trace_level = 0;
+    error_manager->pub.output_message = output_message_mod;
+    error_manager->pub.emit_message = emit_message_mod;
+    error_manager->pub.error_exit = error_exit_mod;
+    return &error_manager->pub;
+}
+
+struct jpeg_progress_mgr_mod
+{
+    struct jpeg_progress_mgr pub;
+    JNIEnv* env;
+    struct reencode_control* control;
+    jobject progress_callback;
+    jmethodID run_method;
+    jint stage;
+    long long last_report_time_millis;
+    long long deadline_millis;
+};
+
+static long long current_time_millis()
+{
+    struct timespec now;
+    clock_gettime(CLOCK_MONOTONIC, &now);
+    return (long long) now.tv_sec * 1000 + now.tv_nsec / 1000000;
+}
+
+static struct stage_time stage_time_now()
+{
+    struct timespec wall, cpu;
+    clock_gettime(CLOCK_MONOTONIC, &wall);
+    clock_gettime(CLOCK_THREAD_CPUTIME_ID, &cpu);
+
+    struct stage_time now;
+    now.wall_nanos = (jlong) wall.tv_sec * 1000000000LL + wall.tv_nsec;
+    now.cpu_nanos = (jlong) cpu.tv_sec * 1000000000LL + cpu.tv_nsec;
+    return now;
+}
+
+static void add_elapsed_time(struct stage_time* total, struct stage_time start)
+{
+    struct stage_time now = stage_time_now();
+    total->wall_nanos += now.wall_nanos - start.wall_nanos;
+    total->cpu_nanos += now.cpu_nanos - start.cpu_nanos;
+}
+
+static void progress_monitor_mod(j_common_ptr cinfo)
+{
+    struct jpeg_progress_mgr_mod* progress = (struct jpeg_progress_mgr_mod*) cinfo->progress;
+    struct jpeg_error_mgr_mod* err_mod = (struct jpeg_error_mgr_mod*) cinfo->err;
+    struct reencode_control* control = progress->control;
+
+    //abort through the same path as libjpeg errors, the setjmp handler releases everything
+    if (control->cancelled)
+        longjmp(err_mod->jump_buffer, EXIT_CANCELLED);
+
+    //the monitor is called at each SOS marker too, a scan flood is stopped before decoding it
+    if (progress->stage == STAGE_DECODE && control->max_scans > 0 &&
+        ((j_decompress_ptr) cinfo)->input_scan_number > control->max_scans)
+    {
+        if (err_mod->error_file != NULL)
+            fprintf(err_mod->error_file, "Image has more than %d scans\n", control->max_scans);
+        longjmp(err_mod->jump_buffer, EXIT_FAILURE);
+    }
+
+    if (progress->progress_callback == NULL && progress->deadline_millis == 0)
+        return;
+
+    long long now = current_time_millis();
+    if (progress->deadline_millis != 0 && now >= progress->deadline_millis)
+    {
+        if (err_mod->error_file != NULL)
+            fprintf(err_mod->error_file, "Timed out after %d ms\n", control->timeout_millis);
+        longjmp(err_mod->jump_buffer, EXIT_TIMEOUT);
+    }
+
+    if (progress->progress_callback != NULL)
+    {
+        if (now - progress->last_report_time_millis >= control->progress_interval_millis)
+        {
+            progress->last_report_time_millis = now;
+            control->stage = progress->stage;
+            control->completed_passes = progress->pub.completed_passes;
+            control->total_passes = progress->pub.total_passes;
+            control->pass_counter = progress->pub.pass_counter;
+            control->pass_limit = progress->pub.pass_limit;
+
+            //the Java exception stays pending, it will be thrown when returning to Java
+            JNIEnv* env = progress->env;
+            (*env)->CallVoidMethod(env, progress->progress_callback, progress->run_method);
+            if ((*env)->ExceptionCheck(env))
+                longjmp(err_mod->jump_buffer, EXIT_FAILURE);
+        }
+    }
+}
+
+static struct jpeg_progress_mgr* init_progress_manager(struct jpeg_progress_mgr_mod* progress, struct transform_args* args, jint stage, long long deadline_millis)
+{
+    progress->pub.progress_monitor = progress_monitor_mod;
+    progress->env = args->env;
+    progress->control = args->control;
+    progress->progress_callback = args->progress_callback;
+    progress->run_method = args->progress_callback != NULL
+        ? (*args->env)->GetMethodID(args->env, (*args->env)->FindClass(args->env, "java/lang/Runnable"), "run", "()V")
+        : NULL;
+    progress->stage = stage;
+    progress->last_report_time_millis = 0;
+    progress->deadline_millis = deadline_millis;
+    return &progress->pub;
+}
+
+static void check_resource_limits(j_decompress_ptr decompress_info, struct reencode_control* control)
+{
+    struct jpeg_error_mgr_mod* err_mod = (struct jpeg_error_mgr_mod*) decompress_info->err;
+
+    long long pixels = (long long) decompress_info->image_width * decompress_info->image_height;
+    if (control->max_pixels > 0 && pixels > control->max_pixels)
+    {
+        if (err_mod->error_file != NULL)
+            fprintf(err_mod->error_file, "Image has %u x %u pixels, more than the limit of %lld pixels\n",
+                decompress_info->image_width, decompress_info->image_height, (long long) control->max_pixels);
+        longjmp(err_mod->jump_buffer, EXIT_FAILURE);
+    }
+
+    //the whole image coefficient arrays are by far the largest allocation. Reject early with a clear message,
+    //max_memory_to_use would only fail later, with a "Backing store not supported" error
+    long long coefficients_size = 0;
+    for (int i = 0; i < decompress_info->num_components; i++)
+        coefficients_size += (long long) decompress_info->comp_info[i].width_in_blocks *
+            decompress_info->comp_info[i].height_in_blocks * (long long) sizeof(JBLOCK);
+    if (control->max_memory_bytes > 0 && coefficients_size > control->max_memory_bytes)
+    {
+        if (err_mod->error_file != NULL)
+            fprintf(err_mod->error_file, "Image needs at least %lld bytes, more than the limit of %lld bytes\n",
+                coefficients_size, (long long) control->max_memory_bytes);
+        longjmp(err_mod->jump_buffer, EXIT_FAILURE);
+    }
+}
+
+static long max_memory_to_use(struct reencode_control* control)
+{
+    //0 means no limit. long is 32 bit on some ABIs
+    if (control == NULL || control->max_memory_bytes <= 0)
+        return 0;
+    return control->max_memory_bytes < LONG_MAX ? (long) control->max_memory_bytes : LONG_MAX;
+}
+
+#define FIXED_BUFFER_OVERFLOW_SIZE 4096
+
+struct jpeg_fixed_buffer_destination_mgr
+{
+    struct jpeg_destination_mgr pub;
+    JOCTET* buffer;
+    size_t buffer_size;
+    boolean overflowed;
+    size_t overflow_size;
+    unsigned long* output_size;
+    JOCTET overflow_buffer[FIXED_BUFFER_OVERFLOW_SIZE];
+};
+
+static void init_fixed_buffer_destination(j_compress_ptr cinfo)
+{
+    struct jpeg_fixed_buffer_destination_mgr* dest = (struct jpeg_fixed_buffer_destination_mgr*) cinfo->dest;
+    dest->pub.next_output_byte = dest->buffer;
+    dest->pub.free_in_buffer = dest->buffer_size;
+    dest->overflowed = FALSE;
+    dest->overflow_size = 0;
+}
+
+static boolean empty_fixed_buffer_output_buffer(j_compress_ptr cinfo)
+{
+    //the caller's buffer is full: keep encoding into a scratch buffer, only to count how many bytes would be needed
+    struct jpeg_fixed_buffer_destination_mgr* dest = (struct jpeg_fixed_buffer_destination_mgr*) cinfo->dest;
+    if (dest->overflowed)
+        dest->overflow_size += FIXED_BUFFER_OVERFLOW_SIZE;
+    dest->overflowed = TRUE;
+    dest->pub.next_output_byte = dest->overflow_buffer;
+    dest->pub.free_in_buffer = FIXED_BUFFER_OVERFLOW_SIZE;
+    return TRUE;
+}
+
+static void term_fixed_buffer_destination(j_compress_ptr cinfo)
+{
+    struct jpeg_fixed_buffer_destination_mgr* dest = (struct jpeg_fixed_buffer_destination_mgr*) cinfo->dest;
+    *dest->output_size = dest->overflowed
+        ? dest->buffer_size + dest->overflow_size + (FIXED_BUFFER_OVERFLOW_SIZE - dest->pub.free_in_buffer)
+        : dest->buffer_size - dest->pub.free_in_buffer;
+}
+
+static void jpeg_fixed_buffer_dest(j_compress_ptr cinfo, unsigned char* buffer, unsigned long buffer_size, unsigned long* output_size)
+{
+    //same as jdatadst.c, a manager left by a previous image is reused
+    if (cinfo->dest == NULL)
+        cinfo->dest = (struct jpeg_destination_mgr*) (*cinfo->mem->alloc_small)
+            ((j_common_ptr) cinfo, JPOOL_PERMANENT, sizeof(struct jpeg_fixed_buffer_destination_mgr));
+    else if (cinfo->dest->init_destination != init_fixed_buffer_destination)
+        ERREXIT(cinfo, JERR_BUFFER_SIZE);
+
+    struct jpeg_fixed_buffer_destination_mgr* dest = (struct jpeg_fixed_buffer_destination_mgr*) cinfo->dest;
+    dest->pub.init_destination = init_fixed_buffer_destination;
+    dest->pub.empty_output_buffer = empty_fixed_buffer_output_buffer;
+    dest->pub.term_destination = term_fixed_buffer_destination;
+    dest->buffer = buffer;
+    dest->buffer_size = buffer_size;
+    dest->output_size = output_size;
+    *output_size = 0;
+}
+
+//like jpeg_mem_dest, but *output_buffer always points to the current buffer, not only after term_destination:
+//jpeg_mem_dest frees the previous buffer when it grows, so a reencode aborted midway (cancel, timeout, no gain)
+//would leave the caller with a freed pointer and leak the live one. The caller frees *output_buffer on every path
+#define GROWABLE_BUFFER_INITIAL_SIZE 65536
+
+struct jpeg_growable_buffer_destination_mgr
+{
+    struct jpeg_destination_mgr pub;
+    unsigned char** output_buffer;
+    unsigned long* output_size;
+    size_t buffer_size;
+};
+
+static void init_growable_buffer_destination(j_compress_ptr cinfo)
+{
+    struct jpeg_growable_buffer_destination_mgr* dest = (struct jpeg_growable_buffer_destination_mgr*) cinfo->dest;
+    unsigned char* buffer = (unsigned char*) malloc(GROWABLE_BUFFER_INITIAL_SIZE);
+    if (buffer == NULL)
+        ERREXIT1(cinfo, JERR_OUT_OF_MEMORY, 10);
+
+    *dest->output_buffer = buffer;
+    dest->buffer_size = GROWABLE_BUFFER_INITIAL_SIZE;
+    dest->pub.next_output_byte = buffer;
+    dest->pub.free_in_buffer = GROWABLE_BUFFER_INITIAL_SIZE;
+}
+
+static boolean empty_growable_buffer_output_buffer(j_compress_ptr cinfo)
+{
+    //the whole buffer is full, see the note on empty_output_buffer in the output size limit region
+    struct jpeg_growable_buffer_destination_mgr* dest = (struct jpeg_growable_buffer_destination_mgr*) cinfo->dest;
+    size_t new_buffer_size = dest->buffer_size * 2;
+    //on failure the old buffer is still valid and still owned by the caller
+    unsigned char* buffer = (unsigned char*) realloc(*dest->output_buffer, new_buffer_size);
+    if (buffer == NULL)
+        ERREXIT1(cinfo, JERR_OUT_OF_MEMORY, 10);
+
+    *dest->output_buffer = buffer;
+    dest->pub.next_output_byte = buffer + dest->buffer_size;
+    dest->pub.free_in_buffer = new_buffer_size - dest->buffer_size;
+    dest->buffer_size = new_buffer_size;
+    return TRUE;
+}
+
+static void term_growable_buffer_destination(j_compress_ptr cinfo)
+{
+    struct jpeg_growable_buffer_destination_mgr* dest = (struct jpeg_growable_buffer_destination_mgr*) cinfo->dest;
+    *dest->output_size = dest->buffer_size - dest->pub.free_in_buffer;
+}
+
+static void jpeg_growable_buffer_dest(j_compress_ptr cinfo, unsigned char** output_buffer, unsigned long* output_size)
+{
+    //same as jdatadst.c, a manager left by a previous image is reused
+    if (cinfo->dest == NULL)
+        cinfo->dest = (struct jpeg_destination_mgr*) (*cinfo->mem->alloc_small)
+            ((j_common_ptr) cinfo, JPOOL_PERMANENT, sizeof(struct jpeg_growable_buffer_destination_mgr));
+    else if (cinfo->dest->init_destination != init_growable_buffer_destination)
+        ERREXIT(cinfo, JERR_BUFFER_SIZE);
+
+    struct jpeg_growable_buffer_destination_mgr* dest = (struct jpeg_growable_buffer_destination_mgr*) cinfo->dest;
+    dest->pub.init_destination = init_growable_buffer_destination;
+    dest->pub.empty_output_buffer = empty_growable_buffer_output_buffer;
+    dest->pub.term_destination = term_growable_buffer_destination;
+    dest->output_buffer = output_buffer;
+    dest->output_size = output_size;
+    *output_buffer = NULL;
+    *output_size = 0;
+}
+
+struct jpeg_java_stream_source_mgr
+{
+    struct jpeg_source_mgr pub;
+    JNIEnv* env;
+    jobject input_stream;
+    jmethodID read_method;
+    jbyteArray java_buffer;
+    jsize buffer_size;
+    JOCTET* buffer;
+    boolean start_of_file;
+};
+
+static void init_java_stream_source(j_decompress_ptr cinfo)
+{
+    struct jpeg_java_stream_source_mgr* src = (struct jpeg_java_stream_source_mgr*) cinfo->src;
+    src->start_of_file = TRUE;
+}
+
+static boolean fill_java_stream_input_buffer(j_decompress_ptr cinfo)
+{
+    struct jpeg_java_stream_source_mgr* src = (struct jpeg_java_stream_source_mgr*) cinfo->src;
+    JNIEnv* env = src->env;
+
+    jint read_bytes;
+    do read_bytes = (*env)->CallIntMethod(env, src->input_stream, src->read_method, src->java_buffer, 0, src->buffer_size);
+    while (read_bytes == 0 && !(*env)->ExceptionCheck(env));
+
+    //the Java exception stays pending, it will be thrown when returning to Java
+    if ((*env)->ExceptionCheck(env))
+        ERREXIT(cinfo, JERR_FILE_READ);
+
+    if (read_bytes < 0)
+    {
+        if (src->start_of_file)
+            ERREXIT(cinfo, JERR_INPUT_EMPTY);
+        WARNMS(cinfo, JWRN_JPEG_EOF);
+        //insert a fake EOI marker, same as jdatasrc.c
+        src->buffer[0] = (JOCTET) 0xFF;
+        src->buffer[1] = (JOCTET) JPEG_EOI;
+        read_bytes = 2;
+    }
+    else
+    {
+        (*env)->GetByteArrayRegion(env, src->java_buffer, 0, read_bytes, (jbyte*) src->buffer);
+    }
+
+    src->pub.next_input_byte = src->buffer;
+    src->pub.bytes_in_buffer = read_bytes;
+    src->start_of_file = FALSE;
+    return TRUE;
+}
+
+static void skip_java_stream_input_data(j_decompress_ptr cinfo, long num_bytes)
+{
+    struct jpeg_source_mgr* src = cinfo->src;
+    if (num_bytes > 0)
+    {
+        while (num_bytes > (long) src->bytes_in_buffer)
+        {
+            num_bytes -= (long) src->bytes_in_buffer;
+            (void) (*src->fill_input_buffer) (cinfo);
+        }
+        src->next_input_byte += (size_t) num_bytes;
+        src->bytes_in_buffer -= (size_t) num_bytes;
+    }
+}
+
+static void term_java_stream_source(j_decompress_ptr cinfo) {}
+
+static void jpeg_java_stream_src(j_decompress_ptr cinfo, JNIEnv* env, jobject input_stream, jbyteArray java_buffer)
+{
+    //same as jdatasrc.c, a manager left by a previous image is reused
+    if (cinfo->src == NULL)
+    {
+        cinfo->src = (struct jpeg_source_mgr*) (*cinfo->mem->alloc_small)
+            ((j_common_ptr) cinfo, JPOOL_PERMANENT, sizeof(struct jpeg_java_stream_source_mgr));
+        ((struct jpeg_java_stream_source_mgr*) cinfo->src)->buffer = NULL;
+    }
+    else if (cinfo->src->init_source != init_java_stream_source)
+        ERREXIT(cinfo, JERR_BUFFER_SIZE);
+
+    struct jpeg_java_stream_source_mgr* src = (struct jpeg_java_stream_source_mgr*) cinfo->src;
+    jsize buffer_size = (*env)->GetArrayLength(env, java_buffer);
+    if (src->buffer == NULL || src->buffer_size != buffer_size)
+        src->buffer = (JOCTET*) (*cinfo->mem->alloc_small) ((j_common_ptr) cinfo, JPOOL_PERMANENT, buffer_size);
+    src->env = env;
+    src->input_stream = input_stream;
+    src->read_method = (*env)->GetMethodID(env, (*env)->FindClass(env, "java/io/InputStream"), "read", "([BII)I");
+    src->java_buffer = java_buffer;
+    src->buffer_size = buffer_size;
+    src->pub.init_source = init_java_stream_source;
+    src->pub.fill_input_buffer = fill_java_stream_input_buffer;
+    src->pub.skip_input_data = skip_java_stream_input_data;
+    src->pub.resync_to_restart = jpeg_resync_to_restart;
+    src->pub.term_source = term_java_stream_source;
+    src->pub.bytes_in_buffer = 0;
+    src->pub.next_input_byte = NULL;
+}
+
+struct jpeg_java_stream_destination_mgr
+{
+    struct jpeg_destination_mgr pub;
+    JNIEnv* env;
+    jobject output_stream;
+    jmethodID write_method;
+    jmethodID flush_method;
+    jbyteArray java_buffer;
+    jsize buffer_size;
+    JOCTET* buffer;
+};
+
+static void write_java_stream_output_buffer(j_compress_ptr cinfo, jsize count)
+{
+    struct jpeg_java_stream_destination_mgr* dest = (struct jpeg_java_stream_destination_mgr*) cinfo->dest;
+    JNIEnv* env = dest->env;
+
+    if (count > 0)
+    {
+        (*env)->SetByteArrayRegion(env, dest->java_buffer, 0, count, (const jbyte*) dest->buffer);
+        (*env)->CallVoidMethod(env, dest->output_stream, dest->write_method, dest->java_buffer, 0, count);
+    }
+
+    //the Java exception stays pending, it will be thrown when returning to Java
+    if ((*env)->ExceptionCheck(env))
+        ERREXIT(cinfo, JERR_FILE_WRITE);
+}
+
+static void init_java_stream_destination(j_compress_ptr cinfo)
+{
+    struct jpeg_java_stream_destination_mgr* dest = (struct jpeg_java_stream_destination_mgr*) cinfo->dest;
+    dest->pub.next_output_byte = dest->buffer;
+    dest->pub.free_in_buffer = dest->buffer_size;
+}
+
+static boolean empty_java_stream_output_buffer(j_compress_ptr cinfo)
+{
+    struct jpeg_java_stream_destination_mgr* dest = (struct jpeg_java_stream_destination_mgr*) cinfo->dest;
+    write_java_stream_output_buffer(cinfo, dest->buffer_size);
+    dest->pub.next_output_byte = dest->buffer;
+    dest->pub.free_in_buffer = dest->buffer_size;
+    return TRUE;
+}
+
+static void term_java_stream_destination(j_compress_ptr cinfo)
+{
+    struct jpeg_java_stream_destination_mgr* dest = (struct jpeg_java_stream_destination_mgr*) cinfo->dest;
+    write_java_stream_output_buffer(cinfo, dest->buffer_size - (jsize) dest->pub.free_in_buffer);
+
+    (*dest->env)->CallVoidMethod(dest->env, dest->output_stream, dest->flush_method);
+    if ((*dest->env)->ExceptionCheck(dest->env))
+        ERREXIT(cinfo, JERR_FILE_WRITE);
+}
+
+static void jpeg_java_stream_dest(j_compress_ptr cinfo, JNIEnv* env, jobject output_stream, jbyteArray java_buffer)
+{
+    //same as jdatadst.c, a manager left by a previous image is reused
+    if (cinfo->dest == NULL)
+    {
+        cinfo->dest = (struct jpeg_destination_mgr*) (*cinfo->mem->alloc_small)
+            ((j_common_ptr) cinfo, JPOOL_PERMANENT, sizeof(struct jpeg_java_stream_destination_mgr));
+        ((struct jpeg_java_stream_destination_mgr*) cinfo->dest)->buffer = NULL;
+    }
+    else if (cinfo->dest->init_destination != init_java_stream_destination)
+        ERREXIT(cinfo, JERR_BUFFER_SIZE);
+
+    struct jpeg_java_stream_destination_mgr* dest = (struct jpeg_java_stream_destination_mgr*) cinfo->dest;
+    jsize buffer_size = (*env)->GetArrayLength(env, java_buffer);
+    if (dest->buffer == NULL || dest->buffer_size != buffer_size)
+        dest->buffer = (JOCTET*) (*cinfo->mem->alloc_small) ((j_common_ptr) cinfo, JPOOL_PERMANENT, buffer_size);
+    jclass output_stream_class = (*env)->FindClass(env, "java/io/OutputStream");
+    dest->env = env;
+    dest->output_stream = output_stream;
+    dest->write_method = (*env)->GetMethodID(env, output_stream_class, "write", "([BII)V");
+    dest->flush_method = (*env)->GetMethodID(env, output_stream_class, "flush", "()V");
+    dest->java_buffer = java_buffer;
+    dest->buffer_size = buffer_size;
+    dest->pub.init_destination = init_java_stream_destination;
+    dest->pub.empty_output_buffer = empty_java_stream_output_buffer;
+    dest->pub.term_destination = term_java_stream_destination;
+}
+
+static boolean starts_with_exif_marker(j_decompress_ptr decompress_info)
+{
+    //JPEG specification - see https://stackoverflow.com/a/48814876
+    jpeg_saved_marker_ptr marker = decompress_info->marker_list;
+    return marker != NULL && marker->marker == JPEG_APP0+1 &&
+           marker->data_length >= 6 && memcmp(marker->data, "Exif\0\0", 6) == 0;
+}
+
+#pragma region Header probe
+//shared with JPEGHeader.java, a direct ByteBuffer in native byte order
+//only the first markers are listed, num_markers has the total count
+#define MAX_PROBED_MARKERS 64
+
+struct probed_marker
+{
+    jint marker;
+    //of the segment, including the 2 length bytes. 0 for markers without a segment (SOI, EOI, RSTn)
+    jint length;
+    jlong offset;
+};
+
+//written into a COM marker by this library, recognized by the header probe
+#define FINGERPRINT_PREFIX "Reencoded by ro.andob.jpegturbo"
+#define FINGERPRINT_MAX_LENGTH 256
+
+struct jpeg_header_info
+{
+    jint image_width;
+    jint image_height;
+    jint num_components;
+    jint progressive;
+    jint arithmetic;
+    jint optimized_huffman_tables;
+    jint fingerprint;
+    jint color_space;
+    //code of the first SOFn marker, MARKER_SOF0 for baseline
+    jint frame_marker;
+    jint restart_interval;
+    //1..100, -1 if there is no luminance quantization table
+    jint estimated_quality;
+    jint num_markers;
+    jint component_ids[MAX_COMPONENTS];
+    jint h_samp_factors[MAX_COMPONENTS];
+    jint v_samp_factors[MAX_COMPONENTS];
+    struct probed_marker markers[MAX_PROBED_MARKERS];
+    //NUL terminated, empty if there is no fingerprint
+    char fingerprint_text[FINGERPRINT_MAX_LENGTH];
+};
+
+static boolean is_fingerprint(jpeg_saved_marker_ptr marker)
+{
+    size_t prefix_length = strlen(FINGERPRINT_PREFIX);
+    return marker->marker == JPEG_COM && marker->data_length >= prefix_length &&
+        memcmp(marker->data, FINGERPRINT_PREFIX, prefix_length) == 0;
+}
+
+//copied into text, NUL terminated. Returns FALSE if there is no fingerprint
+static boolean read_fingerprint(j_decompress_ptr decompress_info, char* text, size_t text_size)
+{
+    for (jpeg_saved_marker_ptr marker = decompress_info->marker_list; marker != NULL; marker = marker->next)
+    {
+        if (is_fingerprint(marker))
+        {
+            size_t length = marker->data_length < text_size ? marker->data_length : text_size - 1;
+            memcpy(text, marker->data, length);
+            text[length] = '\0';
+            return TRUE;
+        }
+    }
+    return FALSE;
+}
+
+//a fingerprint describes how the input was encoded, it is wrong for the reencoded output: never copy it
+static void remove_fingerprints(j_decompress_ptr decompress_info)
+{
+    jpeg_saved_marker_ptr* link = &decompress_info->marker_list;
+    while (*link != NULL)
+    {
+        if (is_fingerprint(*link))
+            *link = (*link)->next;
+        else link = &(*link)->next;
+    }
+}
+
+//"Reencoded by ro.andob.jpegturbo (mozjpeg 2.1.4, progressive, optimized)": the library (PACKAGE_NAME is the project name,
+//that is the LIBRARY_NAME of the bindings module), then the requested options, parsed by Fingerprint.java
+static void write_fingerprint(j_compress_ptr compress_info, struct transform_args* args)
+{
+    char mozjpeg_options[FINGERPRINT_MAX_LENGTH] = "";
+    #ifdef JPEG_C_PARAM_SUPPORTED
+        //same names as MozjpegOptions.getFingerprintFlags
+        static const char* profile_names[] = { "fastest profile", "max-compression profile" };
+        static const char* dc_scan_mode_names[] = { "all-components DC scans", "per-component DC scans", "luminance-then-chroma DC scans" };
+        struct reencode_control* control = args->control;
+        if (control->mozjpeg_options && control->compress_profile >= 0 && control->compress_profile < 2 &&
+            control->dc_scan_opt_mode >= 0 && control->dc_scan_opt_mode < 3)
+            snprintf(mozjpeg_options, sizeof(mozjpeg_options), ", %s%s, %s", profile_names[control->compress_profile],
+                control->optimize_scans ? ", scan search" : "", dc_scan_mode_names[control->dc_scan_opt_mode]);
+    #endif
+
+    char fingerprint[FINGERPRINT_MAX_LENGTH];
+    int length = snprintf(fingerprint, sizeof(fingerprint), "%s (%s %s%s%s%s)", FINGERPRINT_PREFIX, PACKAGE_NAME, VERSION,
+        args->progressive ? ", progressive" : "", args->optimize ? ", optimized" : "", mozjpeg_options);
+    if (length > 0)
+        jpeg_write_marker(compress_info, JPEG_COM, (const JOCTET*) fingerprint,
+            length < (int) sizeof(fingerprint) ? (unsigned int) length : sizeof(fingerprint) - 1);
+}
+
+//code lengths of the example AC tables of the JPEG specification (K.3.3.2), used by encoders that do not optimize
+static const UINT8 standard_ac_luminance_bits[17] = { 0, 0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d };
+static const UINT8 standard_ac_chrominance_bits[17] = { 0, 0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77 };
+
+//optimized tables are built from the symbol statistics of the image, they practically never match the example tables.
+//in a progressive image, jpeg_read_header only sees the tables defined before the first scan
+static boolean has_optimized_huffman_tables(j_decompress_ptr decompress_info)
+{
+    boolean has_ac_tables = FALSE;
+    for (int i = 0; i < NUM_HUFF_TBLS; i++)
+    {
+        JHUFF_TBL* table = decompress_info->ac_huff_tbl_ptrs[i];
+        if (table == NULL)
+            continue;
+
+        if (memcmp(table->bits, standard_ac_luminance_bits, sizeof(standard_ac_luminance_bits)) == 0 ||
+            memcmp(table->bits, standard_ac_chrominance_bits, sizeof(standard_ac_chrominance_bits)) == 0)
+            return FALSE;
+        has_ac_tables = TRUE;
+    }
+    return has_ac_tables;
+}
+
+//the IJG example tables (K.1 and K.2 of the JPEG specification), in natural order, same as jcparam.c
+static const unsigned int standard_luminance_quant_table[DCTSIZE2] = {
+    16, 11, 10, 16, 24, 40, 51, 61,
+    12, 12, 14, 19, 26, 58, 60, 55,
+    14, 13, 16, 24, 40, 57, 69, 56,
+    14, 17, 22, 29, 51, 87, 80, 62,
+    18, 22, 37, 56, 68, 109, 103, 77,
+    24, 35, 55, 64, 81, 104, 113, 92,
+    49, 64, 78, 87, 103, 121, 120, 101,
+    72, 92, 95, 98, 112, 100, 103, 99
+};
+static const unsigned int standard_chrominance_quant_table[DCTSIZE2] = {
+    17, 18, 24, 47, 99, 99, 99, 99,
+    18, 21, 26, 66, 99, 99, 99, 99,
+    24, 26, 56, 99, 99, 99, 99, 99,
+    47, 66, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99,
+    99, 99, 99, 99, 99, 99, 99, 99
+};
+
+//distance between a quantization table and the example table scaled the way jpeg_set_quality does
+static long long get_quant_table_distance(JQUANT_TBL* table, const unsigned int* standard_table, int scale_factor)
+{
+    unsigned int max_value = 0;
+    for (int i = 0; i < DCTSIZE2; i++)
+        max_value = table->quantval[i] > max_value ? table->quantval[i] : max_value;
+    //values are limited to 255 with force_baseline, 16 bit tables are only used without it
+    long long limit = max_value > 255 ? 32767 : 255;
+
+    long long distance = 0;
+    for (int i = 0; i < DCTSIZE2; i++)
+    {
+        long long value = ((long long) standard_table[i] * scale_factor + 50) / 100;
+        value = value < 1 ? 1 : value > limit ? limit : value;
+        distance += llabs(value - (long long) table->quantval[i]);
+    }
+    return distance;
+}
+
+//the IJG quality whose tables are the closest to the image tables. Encoders with other base tables
+//(for instance mozjpeg's default tables or camera firmwares) only get an approximation
+static jint estimate_quality(j_decompress_ptr decompress_info)
+{
+    JQUANT_TBL* luminance_table = decompress_info->quant_tbl_ptrs[0];
+    JQUANT_TBL* chrominance_table = decompress_info->quant_tbl_ptrs[1];
+    if (luminance_table == NULL)
+        return -1;
+
+    jint best_quality = -1;
+    long long best_distance = LLONG_MAX;
+    for (int quality = 1; quality <= 100; quality++)
+    {
+        int scale_factor = jpeg_quality_scaling(quality);
+        long long distance = get_quant_table_distance(luminance_table, standard_luminance_quant_table, scale_factor);
+        if (chrominance_table != NULL)
+            distance += get_quant_table_distance(chrominance_table, standard_chrominance_quant_table, scale_factor);
+
+        if (distance < best_distance)
+        {
+            best_distance = distance;
+            best_quality = quality;
+        }
+    }
+    return best_quality;
+}
+
+//marker codes that jpeglib.h does not define, next to JPEG_RST0, JPEG_EOI, JPEG_APP0 and JPEG_COM
+#define MARKER_TEM 0x01
+#define MARKER_SOF0 0xC0
+#define MARKER_DHT 0xC4
+#define MARKER_JPG 0xC8
+#define MARKER_DAC 0xCC
+#define MARKER_SOF15 0xCF
+#define MARKER_SOI 0xD8
+#define MARKER_SOS 0xDA
+
+//SOF0..SOF15, except the DHT, JPG and DAC codes which are in the same range
+static boolean is_frame_marker(int marker)
+{
+    return marker >= MARKER_SOF0 && marker <= MARKER_SOF15 &&
+           marker != MARKER_DHT && marker != MARKER_JPG && marker != MARKER_DAC;
+}
+
+static void add_probed_marker(struct jpeg_header_info* header_info, int marker, long offset, unsigned int length)
+{
+    if (header_info->num_markers < MAX_PROBED_MARKERS)
+    {
+        struct probed_marker* probed_marker = &header_info->markers[header_info->num_markers];
+        probed_marker->marker = marker;
+        probed_marker->length = (jint) length;
+        probed_marker->offset = (jlong) offset;
+    }
+    header_info->num_markers++;
+}
+
+//libjpeg keeps only the APPn / COM markers. Walk the segments up to the first SOS, skipping their content.
+//malformed data just ends the walk, jpeg_read_header reports the error
+static void walk_markers(FILE* file, struct jpeg_header_info* header_info)
+{
+    if (getc(file) != 0xFF || getc(file) != MARKER_SOI)
+        return;
+    add_probed_marker(header_info, MARKER_SOI, /*offset*/ 0, /*length*/ 0);
+
+    for (;;)
+    {
+        int marker = getc(file);
+        if (marker != 0xFF)
+        {
+            //libjpeg skips garbage between markers with a warning
+            if (marker == EOF) return;
+            continue;
+        }
+
+        //any number of 0xFF fill bytes may precede a marker
+        while ((marker = getc(file)) == 0xFF) {}
+        if (marker == EOF) return;
+        if (marker == 0) continue;
+
+        long offset = ftell(file) - 2;
+        if (marker == JPEG_EOI || (marker >= JPEG_RST0 && marker <= JPEG_RST0 + 7) || marker == MARKER_TEM)
+        {
+            add_probed_marker(header_info, marker, offset, /*length*/ 0);
+            if (marker == JPEG_EOI) return;
+            continue;
+        }
+
+        int length_high = getc(file), length_low = getc(file);
+        if (length_low == EOF) return;
+        unsigned int length = ((unsigned int) length_high << 8) | (unsigned int) length_low;
+        add_probed_marker(header_info, marker, offset, length);
+        if (is_frame_marker(marker) && header_info->frame_marker == 0)
+            header_info->frame_marker = marker;
+
+        if (marker == MARKER_SOS || length < 2 || fseek(file, (long) length - 2, SEEK_CUR) != 0)
+            return;
+    }
+}
+
+//only jpeg_read_header runs, nothing is decoded. Reads up to the first SOS marker
+static int probe_header(FILE* input_file, const unsigned char* input_buffer, unsigned long input_buffer_size,
+                        FILE* error_file, struct jpeg_header_info* header_info)
+{
+    memset(header_info, 0, sizeof(struct jpeg_header_info));
+    if (input_file != NULL)
+    {
+        walk_markers(input_file, header_info);
+        rewind(input_file);
+    }
+    else
+    {
+        FILE* input_buffer_file = input_buffer_size > 0 ? fmemopen((void*) input_buffer, input_buffer_size, READ_BINARY) : NULL;
+        if (input_buffer_file != NULL)
+        {
+            walk_markers(input_buffer_file, header_info);
+            fclose(input_buffer_file);
+        }
+    }
+
+    struct jpeg_decompress_struct decompress_info;
+    struct jpeg_error_mgr_mod error_manager;
+    decompress_info.err = init_error_manager(&error_manager, error_file, /*control*/ NULL);
+
+    //jpeg_destroy_decompress is a no-op on a struct that was not created yet
+    decompress_info.mem = NULL;
+    int jump_result = setjmp(error_manager.jump_buffer);
+    if (jump_result != EXIT_SUCCESS)
+    {
+        jpeg_destroy_decompress(&decompress_info);
+        return jump_result;
+    }
+
+    jpeg_create_decompress(&decompress_info);
+    if (input_file != NULL)
+        jpeg_stdio_src(&decompress_info, input_file);
+    else jpeg_mem_src(&decompress_info, input_buffer, input_buffer_size);
+
+    jpeg_save_markers(&decompress_info, JPEG_COM, FINGERPRINT_MAX_LENGTH);
+    jpeg_read_header(&decompress_info, TRUE);
+
+    header_info->image_width = (jint) decompress_info.image_width;
+    header_info->image_height = (jint) decompress_info.image_height;
+    header_info->num_components = decompress_info.num_components;
+    header_info->progressive = decompress_info.progressive_mode;
+    header_info->arithmetic = decompress_info.arith_code;
+    header_info->optimized_huffman_tables = !decompress_info.arith_code && has_optimized_huffman_tables(&decompress_info);
+    header_info->fingerprint = read_fingerprint(&decompress_info, header_info->fingerprint_text, sizeof(header_info->fingerprint_text));
+    header_info->color_space = decompress_info.jpeg_color_space;
+    header_info->restart_interval = (jint) decompress_info.restart_interval;
+    header_info->estimated_quality = estimate_quality(&decompress_info);
+    for (int i = 0; i < decompress_info.num_components && i < MAX_COMPONENTS; i++)
+    {
+        header_info->component_ids[i] = decompress_info.comp_info[i].component_id;
+        header_info->h_samp_factors[i] = decompress_info.comp_info[i].h_samp_factor;
+        header_info->v_samp_factors[i] = decompress_info.comp_info[i].v_samp_factor;
+    }
+
+    int num_warnings = (int) decompress_info.err->num_warnings;
+    jpeg_destroy_decompress(&decompress_info);
+    return num_warnings ? EXIT_WARNING : EXIT_SUCCESS;
+}
+#pragma endregion
+
+#pragma region Output size limit
+//wraps any destination manager and counts the bytes it receives. The wrapped manager reads its own
+//state from cinfo->dest, so cinfo->dest points to it during each call
+struct jpeg_limited_destination_mgr
+{
+    struct jpeg_destination_mgr pub;
+    struct jpeg_destination_mgr* dest;
+    long long max_output_bytes;
+    long long output_bytes;
+    size_t free_in_buffer_after_flush;
 };
 
-struct jpeg_error_mgr_mod
+static void use_wrapped_destination(j_compress_ptr cinfo, struct jpeg_limited_destination_mgr* limited)
 {
-    struct jpeg_error_mgr pub;
-    FILE* error_file;
-    jmp_buf jump_buffer;
-};
+    limited->dest->next_output_byte = limited->pub.next_output_byte;
+    limited->dest->free_in_buffer = limited->pub.free_in_buffer;
+    cinfo->dest = limited->dest;
+}
 
-static void output_message_mod(j_common_ptr cinfo)
+static void use_limited_destination(j_compress_ptr cinfo, struct jpeg_limited_destination_mgr* limited)
 {
-    #define JMSG_LENGTH_MAX  200
-    char buffer[JMSG_LENGTH_MAX];
-    (*cinfo->err->format_message) (cinfo, buffer);
+    cinfo->dest = &limited->pub;
+    limited->pub.next_output_byte = limited->dest->next_output_byte;
+    limited->pub.free_in_buffer = limited->dest->free_in_buffer;
+    limited->free_in_buffer_after_flush = limited->pub.free_in_buffer;
+}
 
-    struct jpeg_error_mgr_mod* err_mod = (struct jpeg_error_mgr_mod*) cinfo->err;
-    if (err_mod->error_file != NULL)
-        fprintf(err_mod->error_file, "%s\n", buffer);
+//empty_output_buffer must treat the buffer as full, free_in_buffer is not always up to date at that point (jchuff.c)
+static void count_output_bytes(j_compress_ptr cinfo, struct jpeg_limited_destination_mgr* limited, boolean buffer_full)
+{
+    limited->output_bytes += (long long) (buffer_full
+        ? limited->free_in_buffer_after_flush
+        : limited->free_in_buffer_after_flush - limited->pub.free_in_buffer);
+
+    //abort through the same path as libjpeg errors, the setjmp handler releases everything
+    if (limited->output_bytes > limited->max_output_bytes)
+        longjmp(((struct jpeg_error_mgr_mod*) cinfo->err)->jump_buffer, EXIT_NO_GAIN);
 }
 
-static void error_exit_mod(j_common_ptr cinfo)
+static void init_limited_destination(j_compress_ptr cinfo)
 {
-    (*cinfo->err->output_message) (cinfo);
+    struct jpeg_limited_destination_mgr* limited = (struct jpeg_limited_destination_mgr*) cinfo->dest;
+    limited->output_bytes = 0;
+    cinfo->dest = limited->dest;
+    (*limited->dest->init_destination) (cinfo);
+    use_limited_destination(cinfo, limited);
+}
 
-    struct jpeg_error_mgr_mod* err_mod = (struct jpeg_error_mgr_mod*) cinfo->err;
-    longjmp(err_mod->jump_buffer, EXIT_FAILURE);
+static boolean empty_limited_output_buffer(j_compress_ptr cinfo)
+{
+    struct jpeg_limited_destination_mgr* limited = (struct jpeg_limited_destination_mgr*) cinfo->dest;
+    count_output_bytes(cinfo, limited, /*buffer_full*/ TRUE);
+    use_wrapped_destination(cinfo, limited);
+    boolean result = (*limited->dest->empty_output_buffer) (cinfo);
+    use_limited_destination(cinfo, limited);
+    return result;
+}
+
+static void term_limited_destination(j_compress_ptr cinfo)
+{
+    struct jpeg_limited_destination_mgr* limited = (struct jpeg_limited_destination_mgr*) cinfo->dest;
+    count_output_bytes(cinfo, limited, /*buffer_full*/ FALSE);
+    use_wrapped_destination(cinfo, limited);
+    (*limited->dest->term_destination) (cinfo);
+    use_limited_destination(cinfo, limited);
+}
+
+static void jpeg_limited_dest(j_compress_ptr cinfo, struct jpeg_limited_destination_mgr* limited, long long max_output_bytes)
+{
+    limited->pub.init_destination = init_limited_destination;
+    limited->pub.empty_output_buffer = empty_limited_output_buffer;
+    limited->pub.term_destination = term_limited_destination;
+    limited->dest = cinfo->dest;
+    limited->max_output_bytes = max_output_bytes;
+    cinfo->dest = &limited->pub;
+}
+#pragma endregion
+
+#pragma region Mozjpeg options
+//the coefficients are copied as they are, so only the extensions that work on the entropy coding apply here:
+//the profile, the progressive scan search and the DC scan layout. Trellis quantization needs the pixels,
+//jpeg_copy_critical_parameters turns it off. Built against libjpeg-turbo, these are no-ops
+
+//before jpeg_copy_critical_parameters, whose jpeg_set_defaults picks the scan script and optimize_coding from the profile.
+//always set, a session keeps the profile of the previous image
+static void set_compress_profile(j_compress_ptr compress_info, struct reencode_control* control)
+{
+    #ifdef JPEG_C_PARAM_SUPPORTED
+        boolean fastest = control != NULL && control->mozjpeg_options && control->compress_profile == COMPRESS_PROFILE_FASTEST;
+        jpeg_c_set_int_param(compress_info, JINT_COMPRESS_PROFILE, fastest ? JCP_FASTEST : JCP_MAX_COMPRESSION);
+    #endif
+}
+
+//after jpeg_copy_critical_parameters. Returns TRUE if the scan script must be built again with the new options
+static boolean set_mozjpeg_options(j_compress_ptr compress_info, struct reencode_control* control)
+{
+    #ifdef JPEG_C_PARAM_SUPPORTED
+        if (control == NULL || !control->mozjpeg_options)
+            return FALSE;
+
+        jpeg_c_set_bool_param(compress_info, JBOOLEAN_OPTIMIZE_SCANS, control->optimize_scans ? TRUE : FALSE);
+        jpeg_c_set_int_param(compress_info, JINT_DC_SCAN_OPT_MODE, control->dc_scan_opt_mode);
+        //the max compression profile already made a progressive script in jpeg_set_defaults, with the default options
+        return compress_info->num_scans > 0;
+    #else
+        return FALSE;
+    #endif
+}
+#pragma endregion
+
+struct reencode_session
+{
+    struct jpeg_decompress_struct decompress_info;
+    struct jpeg_error_mgr_mod decompress_error_manager;
+    struct jpeg_compress_struct compress_info;
+    struct jpeg_error_mgr_mod compress_error_manager;
+    //libjpeg refuses to reuse a source / destination manager of another kind, keep one of each kind
+    struct jpeg_source_mgr* stdio_source;
+    struct jpeg_source_mgr* memory_source;
+    struct jpeg_source_mgr* java_stream_source;
+    struct jpeg_destination_mgr* stdio_destination;
+    struct jpeg_destination_mgr* memory_destination;
+    struct jpeg_destination_mgr* fixed_buffer_destination;
+    struct jpeg_destination_mgr* java_stream_destination;
+};
+
+static void destroy_session(struct reencode_session* session)
+{
+    jpeg_destroy_decompress(&session->decompress_info);
+    jpeg_destroy_compress(&session->compress_info);
+}
+
+static int create_session(struct reencode_session* session, FILE* error_file)
+{
+    memset(session, 0, sizeof(struct reencode_session));
+    session->decompress_info.err = init_error_manager(&session->decompress_error_manager, error_file, /*control*/ NULL);
+    session->compress_info.err = init_error_manager(&session->compress_error_manager, error_file, /*control*/ NULL);
+
+    //jpeg_destroy_* is a no-op on a struct that was not created yet
+    if (setjmp(session->decompress_error_manager.jump_buffer) != EXIT_SUCCESS)
+    {
+        destroy_session(session);
+        return EXIT_FAILURE;
+    }
+    jpeg_create_decompress(&session->decompress_info);
+
+    if (setjmp(session->compress_error_manager.jump_buffer) != EXIT_SUCCESS)
+    {
+        destroy_session(session);
+        return EXIT_FAILURE;
+    }
+    jpeg_create_compress(&session->compress_info);
+
+    return EXIT_SUCCESS;
 }
 
 struct memory_to_release
 {
     FILE* error_file;
-    struct jpeg_decompress_struct* decompress_info;
-    struct jpeg_compress_struct* compress_info;
+    struct reencode_session* session;
+    boolean owns_session;
     FILE* input_file;
     FILE* output_file;
 };
@@ -76,244 +1212,492 @@ static void release_memory(struct memory_to_release* memory_to_release)
         fclose(memory_to_release->output_file);
         memory_to_release->output_file = NULL;
     }
-    if (memory_to_release->decompress_info != NULL)
-    {
-        jpeg_destroy_decompress(memory_to_release->decompress_info);
-        memory_to_release->decompress_info = NULL;
-    }
-    if (memory_to_release->compress_info != NULL)
+    if (memory_to_release->session != NULL)
     {
-        jpeg_destroy_compress(memory_to_release->compress_info);
-        memory_to_release->compress_info = NULL;
+        if (memory_to_release->owns_session)
+        {
+            destroy_session(memory_to_release->session);
+        }
+        else
+        {
+            //keep the structs, the memory pools and the source / destination managers for the next image
+            jpeg_abort_decompress(&memory_to_release->session->decompress_info);
+            jpeg_abort_compress(&memory_to_release->session->compress_info);
+            memory_to_release->session->decompress_info.progress = NULL;
+            memory_to_release->session->compress_info.progress = NULL;
+            memory_to_release->session->decompress_error_manager.control = NULL;
+            memory_to_release->session->compress_error_manager.control = NULL;
+        }
+        memory_to_release->session = NULL;
     }
 }
 
-static int reencode(struct transform_args args)
+static int reencode(struct transform_args args, struct reencode_session* session)
 {
     struct memory_to_release defer_memory_to_release;
     defer_memory_to_release.error_file = NULL;
-    defer_memory_to_release.decompress_info = NULL;
-    defer_memory_to_release.compress_info = NULL;
-    defer_memory_to_release.input_file = NULL;
-    defer_memory_to_release.output_file = NULL;
+    defer_memory_to_release.session = NULL;
+    defer_memory_to_release.owns_session = FALSE;
+    defer_memory_to_release.input_file = args.input_file;
+    defer_memory_to_release.output_file = args.output_file;
 
-    #pragma region Create error file
-    FILE* error_file = fopen(args.error_file_path, "w");
+    #pragma region Create error message buffer
+    //messages are kept in memory on every path, there is no error file to create, read back and delete
+    FILE* error_file = open_memstream(args.error_buffer, args.error_buffer_size);
     if (error_file == NULL)
+    {
+        release_memory(&defer_memory_to_release);
         return EXIT_FAILURE;
+    }
     defer_memory_to_release.error_file = error_file;
     #pragma endregion
 
-    #pragma region Create Decompress info
-    #pragma clang diagnostic push
-    #pragma clang diagnostic ignored "-Wincompatible-pointer-types"
-    struct jpeg_decompress_struct decompress_info;
-    struct jpeg_error_mgr_mod decompress_error_manager;
-    jpeg_std_error(&decompress_error_manager.pub);
-    decompress_info.err = &decompress_error_manager;
-    decompress_error_manager.error_file = error_file;
-    decompress_error_manager.pub.trace_level = 0;
-    decompress_error_manager.pub.output_message = output_message_mod;
-    decompress_error_manager.pub.error_exit = error_exit_mod;
-    defer_memory_to_release.decompress_info = &decompress_info;
-    if (setjmp(decompress_error_manager.jump_buffer) != EXIT_SUCCESS)
+    #pragma region Create Decompress and Compress info
+    struct reencode_session one_shot_session;
+    if (session == NULL)
+    {
+        if (create_session(&one_shot_session, error_file) != EXIT_SUCCESS)
+        {
+            release_memory(&defer_memory_to_release);
+            return EXIT_FAILURE;
+        }
+        session = &one_shot_session;
+        defer_memory_to_release.owns_session = TRUE;
+    }
+    defer_memory_to_release.session = session;
+
+    struct jpeg_decompress_struct* decompress_info = &session->decompress_info;
+    struct jpeg_error_mgr_mod* decompress_error_manager = &session->decompress_error_manager;
+    init_error_manager(decompress_error_manager, error_file, args.control);
+    int decompress_jump_result = setjmp(decompress_error_manager->jump_buffer);
+    if (decompress_jump_result != EXIT_SUCCESS)
     {
         release_memory(&defer_memory_to_release);
-        return EXIT_FAILURE;
+        return decompress_jump_result;
     }
-    jpeg_create_decompress(&decompress_info);
-    #pragma endregion
 
-    #pragma region Create Compress info
-    struct jpeg_compress_struct compress_info;
-    struct jpeg_error_mgr_mod compress_error_manager;
-    jpeg_std_error(&compress_error_manager.pub);
-    compress_info.err = &compress_error_manager;
-    compress_error_manager.error_file = error_file;
-    compress_error_manager.pub.trace_level = 0;
-    compress_error_manager.pub.output_message = output_message_mod;
-    compress_error_manager.pub.error_exit = error_exit_mod;
-    defer_memory_to_release.compress_info = &compress_info;
-    if (setjmp(compress_error_manager.jump_buffer) != EXIT_SUCCESS)
+    struct jpeg_compress_struct* compress_info = &session->compress_info;
+    struct jpeg_error_mgr_mod* compress_error_manager = &session->compress_error_manager;
+    init_error_manager(compress_error_manager, error_file, args.control);
+    int compress_jump_result = setjmp(compress_error_manager->jump_buffer);
+    if (compress_jump_result != EXIT_SUCCESS)
     {
         release_memory(&defer_memory_to_release);
-        return EXIT_FAILURE;
+        return compress_jump_result;
     }
-    jpeg_create_compress(&compress_info);
-    #pragma clang diagnostic pop
     #pragma endregion
 
-    #pragma region Parse input options
-    if (args.optimize)
+    #pragma region Create progress monitor
+    struct jpeg_progress_mgr_mod decompress_progress_manager;
+    struct jpeg_progress_mgr_mod compress_progress_manager;
+    if (args.control != NULL)
     {
-        #ifdef ENTROPY_OPT_SUPPORTED
-            compress_info.optimize_coding = TRUE;
-        #else
-            #error Please compile with JPEG optimisation support!
-        #endif
+        if (args.control->cancelled)
+        {
+            release_memory(&defer_memory_to_release);
+            return EXIT_CANCELLED;
+        }
+
+        //the deadline is checked by the progress monitor, once per row of MCUs
+        long long deadline_millis = args.control->timeout_millis > 0
+            ? current_time_millis() + args.control->timeout_millis : 0;
+
+        decompress_info->progress = init_progress_manager(&decompress_progress_manager, &args, STAGE_DECODE, deadline_millis);
+        compress_info->progress = init_progress_manager(&compress_progress_manager, &args, STAGE_ENCODE, deadline_millis);
     }
+    #pragma endregion
 
+    #pragma region Parse input options
     if (args.verbose)
     {
-        fprintf(error_file, "%s version %s (build %s)\n", PACKAGE_NAME, VERSION, BUILD);
-        fprintf(error_file, "%s\n\n", JCOPYRIGHT);
-        fprintf(error_file, "Emulating The Independent JPEG Group's software, version %s\n\n", JVERSION);
+        trace_printf(args.control, "%s version %s (build %s)\n", PACKAGE_NAME, VERSION, BUILD);
+        trace_printf(args.control, "%s\n\n", JCOPYRIGHT);
+        trace_printf(args.control, "Emulating The Independent JPEG Group's software, version %s\n\n", JVERSION);
 
-        compress_info.err->trace_level++;
-        decompress_info.err->trace_level++;
+        compress_info->err->trace_level++;
+        decompress_info->err->trace_level++;
     }
     #pragma endregion
 
     #pragma region Read input file
-    FILE* input_file = fopen(args.input_file_path, READ_BINARY);
-    if (input_file == NULL)
+    //wall time includes waiting for input (pipe, stream), cpu time does not
+    struct stage_time read_time = { 0, 0 }, encode_time = { 0, 0 }, markers_time = { 0, 0 };
+    struct stage_time stage_start = stage_time_now();
+
+    if (args.input_file_path != NULL)
     {
-        release_memory(&defer_memory_to_release);
-        fprintf(error_file, "Cannot open %s for reading!", args.input_file_path);
-        return EXIT_FAILURE;
+        FILE* input_file = fopen(args.input_file_path, READ_BINARY);
+        if (input_file == NULL)
+        {
+            fprintf(error_file, "Cannot open %s for reading!", args.input_file_path);
+            release_memory(&defer_memory_to_release);
+            return EXIT_FAILURE;
+        }
+        defer_memory_to_release.input_file = input_file;
+
+        decompress_info->src = session->stdio_source;
+        jpeg_stdio_src(decompress_info, input_file);
+        session->stdio_source = decompress_info->src;
+    }
+    else if (args.input_file != NULL)
+    {
+        decompress_info->src = session->stdio_source;
+        jpeg_stdio_src(decompress_info, args.input_file);
+        session->stdio_source = decompress_info->src;
+    }
+    else if (args.input_stream != NULL)
+    {
+        decompress_info->src = session->java_stream_source;
+        jpeg_java_stream_src(decompress_info, args.env, args.input_stream, args.stream_buffer);
+        session->java_stream_source = decompress_info->src;
+    }
+    else
+    {
+        decompress_info->src = session->memory_source;
+        jpeg_mem_src(decompress_info, args.input_buffer, args.input_buffer_size);
+        session->memory_source = decompress_info->src;
     }
-    defer_memory_to_release.input_file = input_file;
 
-    jpeg_stdio_src(&decompress_info, input_file);
-    jcopy_markers_setup(&decompress_info, JCOPYOPT_ALL);
-    jpeg_read_header(&decompress_info, TRUE);
-    jvirt_barray_ptr* coefficients = jpeg_read_coefficients(&decompress_info);
-    jpeg_copy_critical_parameters(&decompress_info, &compress_info);
+    jcopy_markers_setup(decompress_info, JCOPYOPT_ALL);
+    jpeg_read_header(decompress_info, TRUE);
+    if (args.control != NULL)
+        check_resource_limits(decompress_info, args.control);
+
+    //set on each image, a session keeps the value of the previous image
+    decompress_info->mem->max_memory_to_use = max_memory_to_use(args.control);
+    compress_info->mem->max_memory_to_use = max_memory_to_use(args.control);
+    jvirt_barray_ptr* coefficients = jpeg_read_coefficients(decompress_info);
+    set_compress_profile(compress_info, args.control);
+    jpeg_copy_critical_parameters(decompress_info, compress_info);
     close_input_file(&defer_memory_to_release);
+    add_elapsed_time(&read_time, stage_start);
     #pragma endregion
 
     #pragma region Write output file
-    FILE* output_file = fopen(args.output_file_path, WRITE_BINARY);
-    if (output_file == NULL)
+    //compression parameters are set after jpeg_copy_critical_parameters, which resets them to defaults
+    if (args.optimize)
     {
-        release_memory(&defer_memory_to_release);
-        fprintf(error_file, "Cannot open %s for writing!", args.output_file_path);
-        return EXIT_FAILURE;
+        #ifdef ENTROPY_OPT_SUPPORTED
+            compress_info->optimize_coding = TRUE;
+        #else
+            #error Please compile with JPEG optimisation support!
+        #endif
+    }
+
+    if (starts_with_exif_marker(decompress_info))
+    {
+        //EXIF must immediately follow SOI, do not write a JFIF header in front of it.
+        //The EXIF segment itself is written by jcopy_markers_execute, right after SOI
+        compress_info->write_JFIF_header = FALSE;
     }
-    defer_memory_to_release.output_file = output_file;
 
-    if (args.progressive)
+    boolean rebuild_scan_script = set_mozjpeg_options(compress_info, args.control);
+    if (args.progressive || rebuild_scan_script)
     {
         #ifdef C_PROGRESSIVE_SUPPORTED
-            jpeg_simple_progression(&compress_info);
+            jpeg_simple_progression(compress_info);
         #else
             #error Please compile with progressive JPEG support!
         #endif
     }
 
-    jpeg_stdio_dest(&compress_info, output_file);
-    jpeg_write_coefficients(&compress_info, coefficients);
-    jcopy_markers_execute(&decompress_info, &compress_info, JCOPYOPT_ALL);
+    if (args.output_file_path != NULL)
+    {
+        FILE* output_file = fopen(args.output_file_path, WRITE_BINARY);
+        if (output_file == NULL)
+        {
+            fprintf(error_file, "Cannot open %s for writing!", args.output_file_path);
+            release_memory(&defer_memory_to_release);
+            return EXIT_FAILURE;
+        }
+        defer_memory_to_release.output_file = output_file;
+
+        compress_info->dest = session->stdio_destination;
+        jpeg_stdio_dest(compress_info, output_file);
+        session->stdio_destination = compress_info->dest;
+    }
+    else if (args.output_file != NULL)
+    {
+        compress_info->dest = session->stdio_destination;
+        jpeg_stdio_dest(compress_info, args.output_file);
+        session->stdio_destination = compress_info->dest;
+    }
+    else if (args.output_stream != NULL)
+    {
+        compress_info->dest = session->java_stream_destination;
+        jpeg_java_stream_dest(compress_info, args.env, args.output_stream, args.stream_buffer);
+        session->java_stream_destination = compress_info->dest;
+    }
+    else if (args.output_fixed_buffer != NULL)
+    {
+        compress_info->dest = session->fixed_buffer_destination;
+        jpeg_fixed_buffer_dest(compress_info, args.output_fixed_buffer, args.output_fixed_buffer_size, args.output_size);
+        session->fixed_buffer_destination = compress_info->dest;
+    }
+    else
+    {
+        compress_info->dest = session->memory_destination;
+        jpeg_growable_buffer_dest(compress_info, args.output_buffer, args.output_buffer_size);
+        session->memory_destination = compress_info->dest;
+    }
+
+    //not kept in the session, the next image selects its destination manager again
+    struct jpeg_limited_destination_mgr limited_destination;
+    if (args.control != NULL && args.control->max_output_bytes > 0)
+        jpeg_limited_dest(compress_info, &limited_destination, args.control->max_output_bytes);
+
+    stage_start = stage_time_now();
+    jpeg_write_coefficients(compress_info, coefficients);
+    add_elapsed_time(&encode_time, stage_start);
+
+    //EXIF and the other APPn / COM markers are merged into the output here
+    stage_start = stage_time_now();
+    remove_fingerprints(decompress_info);
+    jcopy_markers_execute(decompress_info, compress_info, JCOPYOPT_ALL);
+    if (args.control != NULL && args.control->write_fingerprint)
+        write_fingerprint(compress_info, &args);
+    add_elapsed_time(&markers_time, stage_start);
     #pragma endregion
 
-    jpeg_finish_compress(&compress_info);
-    jpeg_finish_decompress(&decompress_info);
+    //the entropy coding of the whole image happens here
+    stage_start = stage_time_now();
+    jpeg_finish_compress(compress_info);
+    add_elapsed_time(&encode_time, stage_start);
+    jpeg_finish_decompress(decompress_info);
+
+    int num_warnings = (int) (decompress_error_manager->pub.num_warnings + compress_error_manager->pub.num_warnings);
+    if (args.control != NULL)
+    {
+        args.control->read_time = read_time;
+        args.control->encode_time = encode_time;
+        args.control->markers_time = markers_time;
+    }
 
     release_memory(&defer_memory_to_release);
 
-    return decompress_error_manager.pub.num_warnings + compress_error_manager.pub.num_warnings ?
-           EXIT_WARNING : EXIT_SUCCESS;
+    return num_warnings ? EXIT_WARNING : EXIT_SUCCESS;
+}
+
+static void set_error_message(JNIEnv* env, jobjectArray error_message_to_java, char* error_buffer, size_t error_buffer_size)
+{
+    if (error_buffer != NULL && error_buffer_size > 0 && !(*env)->ExceptionCheck(env))
+        (*env)->SetObjectArrayElement(env, error_message_to_java, 0, (*env)->NewStringUTF(env, error_buffer));
 }
 
-#define CREATE_JAVA_METHOD__(class_name, method_name) JNIEXPORT jint JNICALL Java_ ## class_name ## _ ## method_name
-#define CREATE_JAVA_METHOD_(class_name, method_name) CREATE_JAVA_METHOD__(class_name, method_name)
-#define CREATE_JAVA_METHOD(method_name) CREATE_JAVA_METHOD_(JAVA_CLASS_NAME, method_name)
+#define CREATE_JAVA_METHOD__(return_type, class_name, method_name) JNIEXPORT return_type JNICALL Java_ ## class_name ## _ ## method_name
+#define CREATE_JAVA_METHOD_(return_type, class_name, method_name) CREATE_JAVA_METHOD__(return_type, class_name, method_name)
+#define CREATE_JAVA_METHOD(method_name) CREATE_JAVA_METHOD_(jint, JAVA_CLASS_NAME, method_name)
+#define CREATE_JAVA_METHOD_RETURNING(return_type, method_name) CREATE_JAVA_METHOD_(return_type, JAVA_CLASS_NAME, method_name)
 
 CREATE_JAVA_METHOD(reencode)(
     JNIEnv* env, jclass clazz,
-    jstring input_file_path_from_java, jstring output_file_path_from_java, jstring error_file_path_from_java,
+    jstring input_file_path_from_java, jstring output_file_path_from_java, jobjectArray error_message_to_java,
+    jobject control_from_java, jobject progress_callback,
     jboolean progressive, jboolean optimize, jboolean verbose)
 {
     const char* input_file_path = (*env)->GetStringUTFChars(env, input_file_path_from_java, 0);
     const char* output_file_path = (*env)->GetStringUTFChars(env, output_file_path_from_java, 0);
-    const char* error_file_path = (*env)->GetStringUTFChars(env, error_file_path_from_java, 0);
+    char* error_buffer = NULL;
+    size_t error_buffer_size = 0;
 
     struct transform_args args;
+    memset(&args, 0, sizeof(args));
+    args.env = env;
+    args.control = control_from_java != NULL ? (*env)->GetDirectBufferAddress(env, control_from_java) : NULL;
+    args.progress_callback = progress_callback;
     args.input_file_path = input_file_path;
     args.output_file_path = output_file_path;
-    args.error_file_path = error_file_path;
+    args.error_buffer = &error_buffer;
+    args.error_buffer_size = &error_buffer_size;
     args.progressive = progressive;
     args.optimize = optimize;
     args.verbose = verbose;
-    int result = reencode(args);
+    int result = reencode(args, /*session*/ NULL);
 
     (*env)->ReleaseStringUTFChars(env, input_file_path_from_java, input_file_path);
     (*env)->ReleaseStringUTFChars(env, output_file_path_from_java, output_file_path);
-    (*env)->ReleaseStringUTFChars(env, error_file_path_from_java, error_file_path);
+
+    set_error_message(env, error_message_to_java, error_buffer, error_buffer_size);
+    if (error_buffer != NULL) free(error_buffer);
 
     return result;
 }
 
-CREATE_JAVA_METHOD(mergeExifAndJpeg)(
-    JNIEnv *env, jclass clazz,
-    jstring input_exif_file_path_from_java,
-    jstring input_image_file_path_from_java,
-    jstring output_file_path_from_java)
+CREATE_JAVA_METHOD(reencodeByteArray)(
+    JNIEnv* env, jclass clazz,
+    jlong session_handle,
+    jbyteArray input_from_java, jint input_offset, jint input_length,
+    jobjectArray output_to_java, jobjectArray error_message_to_java,
+    jobject control_from_java, jobject progress_callback,
+    jboolean progressive, jboolean optimize, jboolean verbose)
 {
-    const char* input_exif_file_path = (*env)->GetStringUTFChars(env, input_exif_file_path_from_java, 0);
-    const char* input_image_file_path = (*env)->GetStringUTFChars(env, input_image_file_path_from_java, 0);
-    const char* output_file_path = (*env)->GetStringUTFChars(env, output_file_path_from_java, 0);
+    jbyte* input = (*env)->GetByteArrayElements(env, input_from_java, NULL);
+    if (input == NULL)
+        return EXIT_FAILURE;
 
-    //JPEG specification - see https://stackoverflow.com/a/48814876
-    uint8_t jpeg_marker[] = { 0xFF, 0xD8 };
-    uint8_t exif_marker[] = { 0xFF, 0xE1 };
+    unsigned char* output_buffer = NULL;
+    unsigned long output_buffer_size = 0;
+    char* error_buffer = NULL;
+    size_t error_buffer_size = 0;
 
-    int exif_size = 0, image_size = 0;
-    uint8_t *exif_data = NULL, *image_data = NULL;
+    struct transform_args args;
+    memset(&args, 0, sizeof(args));
+    args.env = env;
+    args.control = control_from_java != NULL ? (*env)->GetDirectBufferAddress(env, control_from_java) : NULL;
+    args.progress_callback = progress_callback;
+    args.input_buffer = (const unsigned char*) input + input_offset;
+    args.input_buffer_size = input_length;
+    args.output_buffer = &output_buffer;
+    args.output_buffer_size = &output_buffer_size;
+    args.error_buffer = &error_buffer;
+    args.error_buffer_size = &error_buffer_size;
+    args.progressive = progressive;
+    args.optimize = optimize;
+    args.verbose = verbose;
+    int result = reencode(args, (struct reencode_session*) (intptr_t) session_handle);
 
-    #define ReleaseMemory if (image_data) free(image_data); if (exif_data) free(exif_data);\
-        (*env)->ReleaseStringUTFChars(env, input_exif_file_path_from_java, input_exif_file_path); \
-        (*env)->ReleaseStringUTFChars(env, input_image_file_path_from_java, input_image_file_path); \
-        (*env)->ReleaseStringUTFChars(env, output_file_path_from_java, output_file_path);
+    (*env)->ReleaseByteArrayElements(env, input_from_java, input, JNI_ABORT);
 
-    FILE* input_exif_file = fopen(input_exif_file_path, "rb");
-    if (input_exif_file == NULL) { ReleaseMemory return EXIT_FAILURE; }
-    uint8_t two_bytes[2];
-    fread(two_bytes, sizeof(uint8_t), 2, input_exif_file);
-    if (two_bytes[0] == jpeg_marker[0] && two_bytes[1] == jpeg_marker[1])
+    //cancelled, timed out or over a limit: the buffer holds a partial image, it is only freed
+    if ((result == EXIT_SUCCESS || result == EXIT_WARNING) && output_buffer != NULL)
     {
-        fread(two_bytes, sizeof(uint8_t), 2, input_exif_file);
-        if (two_bytes[0] == exif_marker[0] && two_bytes[1] == exif_marker[1])
+        jbyteArray output = (*env)->NewByteArray(env, (jsize) output_buffer_size);
+        if (output != NULL)
         {
-            fread(two_bytes, sizeof(uint8_t), 2, input_exif_file);
-            exif_size = ((two_bytes[0] << 8) | two_bytes[1]) - 2;
-            if (exif_size > 0)
-            {
-                exif_data = malloc(sizeof(uint8_t) * exif_size);
-                fread(exif_data, sizeof(uint8_t), exif_size, input_exif_file);
-            }
+            (*env)->SetByteArrayRegion(env, output, 0, (jsize) output_buffer_size, (const jbyte*) output_buffer);
+            (*env)->SetObjectArrayElement(env, output_to_java, 0, output);
         }
+        else result = EXIT_FAILURE;
     }
-    fclose(input_exif_file);
 
-    FILE* input_image_file = fopen(input_image_file_path, "rb");
-    if (input_image_file == NULL) { ReleaseMemory return EXIT_FAILURE; }
-    fseek(input_image_file, 0L, SEEK_END);
-    image_size = ftell(input_image_file);
-    rewind(input_image_file);
-    image_data = malloc(sizeof(uint8_t)*image_size);
-    fread(image_data, sizeof(uint8_t), image_size, input_image_file);
-    fclose(input_image_file);
+    set_error_message(env, error_message_to_java, error_buffer, error_buffer_size);
 
-    if (exif_data != NULL && exif_size > 0 && image_data != NULL && image_size > 2)
-    {
-        FILE* output_file = fopen(output_file_path, "wb");
-        uint8_t encoded_exif_size[] = { ((exif_size+2)>>8)&0xFF, (exif_size+2)&0xFF };
-        fwrite(jpeg_marker, sizeof(uint8_t), 2, output_file);
-        fwrite(exif_marker, sizeof(uint8_t), 2, output_file);
-        fwrite(encoded_exif_size, sizeof(uint8_t), 2, output_file);
-        fwrite(exif_data, sizeof(uint8_t), exif_size, output_file);
-        fwrite(image_data+2, sizeof(uint8_t), image_size-2, output_file);
-        fclose(output_file);
-    }
-    else
+    if (output_buffer != NULL) free(output_buffer);
+    if (error_buffer != NULL) free(error_buffer);
+
+    return result;
+}
+
+CREATE_JAVA_METHOD(reencodeDirectByteBuffer)(
+    JNIEnv* env, jclass clazz,
+    jlong session_handle,
+    jobject input_from_java, jint input_offset, jint input_length,
+    jobject output_from_java, jint output_offset, jint output_capacity,
+    jintArray output_size_to_java, jobjectArray error_message_to_java,
+    jobject control_from_java, jobject progress_callback,
+    jboolean progressive, jboolean optimize, jboolean verbose)
+{
+    unsigned char* input = (*env)->GetDirectBufferAddress(env, input_from_java);
+    unsigned char* output = (*env)->GetDirectBufferAddress(env, output_from_java);
+    if (input == NULL || output == NULL)
+        return EXIT_FAILURE;
+
+    unsigned long output_size = 0;
+    char* error_buffer = NULL;
+    size_t error_buffer_size = 0;
+
+    struct transform_args args;
+    memset(&args, 0, sizeof(args));
+    args.env = env;
+    args.control = control_from_java != NULL ? (*env)->GetDirectBufferAddress(env, control_from_java) : NULL;
+    args.progress_callback = progress_callback;
+    args.input_buffer = input + input_offset;
+    args.input_buffer_size = input_length;
+    args.output_fixed_buffer = output + output_offset;
+    args.output_fixed_buffer_size = output_capacity;
+    args.output_size = &output_size;
+    args.error_buffer = &error_buffer;
+    args.error_buffer_size = &error_buffer_size;
+    args.progressive = progressive;
+    args.optimize = optimize;
+    args.verbose = verbose;
+    int result = reencode(args, (struct reencode_session*) (intptr_t) session_handle);
+
+    jint output_size_as_int = (jint) output_size;
+    (*env)->SetIntArrayRegion(env, output_size_to_java, 0, 1, &output_size_as_int);
+
+    set_error_message(env, error_message_to_java, error_buffer, error_buffer_size);
+
+    if (error_buffer != NULL) free(error_buffer);
+
+    return result;
+}
+
+CREATE_JAVA_METHOD(reencodeFileDescriptor)(
+    JNIEnv* env, jclass clazz,
+    jint input_file_descriptor, jint output_file_descriptor,
+    jobjectArray error_message_to_java,
+    jobject control_from_java, jobject progress_callback,
+    jboolean progressive, jboolean optimize, jboolean verbose)
+{
+    //work on duplicates, the file descriptors are still owned (and closed) by the caller
+    int input_file_descriptor_dup = dup(input_file_descriptor);
+    int output_file_descriptor_dup = dup(output_file_descriptor);
+    FILE* input_file = input_file_descriptor_dup >= 0 ? fdopen(input_file_descriptor_dup, READ_BINARY) : NULL;
+    FILE* output_file = output_file_descriptor_dup >= 0 ? fdopen(output_file_descriptor_dup, WRITE_BINARY) : NULL;
+    if (input_file == NULL || output_file == NULL)
     {
-        rename(input_image_file_path, output_file_path);
+        if (input_file != NULL) fclose(input_file);
+        else if (input_file_descriptor_dup >= 0) close(input_file_descriptor_dup);
+        if (output_file != NULL) fclose(output_file);
+        else if (output_file_descriptor_dup >= 0) close(output_file_descriptor_dup);
+        return EXIT_FAILURE;
     }
 
-    ReleaseMemory;
-    #undef ReleaseMemory
-    return EXIT_SUCCESS;
+    char* error_buffer = NULL;
+    size_t error_buffer_size = 0;
+
+    struct transform_args args;
+    memset(&args, 0, sizeof(args));
+    args.env = env;
+    args.control = control_from_java != NULL ? (*env)->GetDirectBufferAddress(env, control_from_java) : NULL;
+    args.progress_callback = progress_callback;
+    args.input_file = input_file;
+    args.output_file = output_file;
+    args.error_buffer = &error_buffer;
+    args.error_buffer_size = &error_buffer_size;
+    args.progressive = progressive;
+    args.optimize = optimize;
+    args.verbose = verbose;
+    int result = reencode(args, /*session*/ NULL);
+
+    set_error_message(env, error_message_to_java, error_buffer, error_buffer_size);
+
+    if (error_buffer != NULL) free(error_buffer);
+
+    return result;
+}
+
+CREATE_JAVA_METHOD(reencodeStream)(
+    JNIEnv* env, jclass clazz,
+    jobject input_stream, jobject output_stream, jbyteArray stream_buffer,
+    jobjectArray error_message_to_java,
+    jobject control_from_java, jobject progress_callback,
+    jboolean progressive, jboolean optimize, jboolean verbose)
+{
+    char* error_buffer = NULL;
+    size_t error_buffer_size = 0;
+
+    struct transform_args args;
+    memset(&args, 0, sizeof(args));
+    args.env = env;
+    args.control = control_from_java != NULL ? (*env)->GetDirectBufferAddress(env, control_from_java) : NULL;
+    args.progress_callback = progress_callback;
+    args.input_stream = input_stream;
+    args.output_stream = output_stream;
+    args.stream_buffer = stream_buffer;
+    args.error_buffer = &error_buffer;
+    args.error_buffer_size = &error_buffer_size;
+    args.progressive = progressive;
+    args.optimize = optimize;
+    args.verbose = verbose;
+    int result = reencode(args, /*session*/ NULL);
+
+    set_error_message(env, error_message_to_java, error_buffer, error_buffer_size);
+
+    if (error_buffer != NULL) free(error_buffer);
+
+    return result;
 }
 
 CREATE_JAVA_METHOD(createPipeFile)(
@@ -325,3 +1709,76 @@ CREATE_JAVA_METHOD(createPipeFile)(
     (*env)->ReleaseStringUTFChars(env, pipe_file_path_from_java, pipe_file_path);
     return result;
 }
+
+CREATE_JAVA_METHOD(probe)(
+    JNIEnv* env, jclass clazz,
+    jstring input_file_path_from_java,
+    jobject input_from_java, jint input_offset, jint input_length,
+    jobjectArray error_message_to_java, jobject header_info_from_java)
+{
+    struct jpeg_header_info* header_info = (*env)->GetDirectBufferAddress(env, header_info_from_java);
+    if (header_info == NULL)
+        return EXIT_FAILURE;
+
+    char* error_buffer = NULL;
+    size_t error_buffer_size = 0;
+    FILE* error_file = open_memstream(&error_buffer, &error_buffer_size);
+    if (error_file == NULL)
+        return EXIT_FAILURE;
+
+    int result;
+    if (input_file_path_from_java != NULL)
+    {
+        const char* input_file_path = (*env)->GetStringUTFChars(env, input_file_path_from_java, 0);
+        FILE* input_file = fopen(input_file_path, READ_BINARY);
+        if (input_file != NULL)
+        {
+            result = probe_header(input_file, /*input_buffer*/ NULL, /*input_buffer_size*/ 0, error_file, header_info);
+            fclose(input_file);
+        }
+        else
+        {
+            fprintf(error_file, "Cannot open %s for reading!", input_file_path);
+            result = EXIT_FAILURE;
+        }
+        (*env)->ReleaseStringUTFChars(env, input_file_path_from_java, input_file_path);
+    }
+    else
+    {
+        unsigned char* input = (*env)->GetDirectBufferAddress(env, input_from_java);
+        result = input != NULL
+            ? probe_header(/*input_file*/ NULL, input + input_offset, input_length, error_file, header_info)
+            : EXIT_FAILURE;
+    }
+
+    fclose(error_file);
+    set_error_message(env, error_message_to_java, error_buffer, error_buffer_size);
+    if (error_buffer != NULL) free(error_buffer);
+
+    return result;
+}
+
+CREATE_JAVA_METHOD_RETURNING(jlong, createSession)(
+    JNIEnv* env, jclass clazz)
+{
+    struct reencode_session* session = malloc(sizeof(struct reencode_session));
+    if (session == NULL)
+        return 0;
+
+    if (create_session(session, /*error_file*/ NULL) != EXIT_SUCCESS)
+    {
+        free(session);
+        return 0;
+    }
+
+    return (jlong) (intptr_t) session;
+}
+
+CREATE_JAVA_METHOD_RETURNING(void, destroySession)(
+    JNIEnv* env, jclass clazz,
+    jlong session_handle)
+{
+    struct reencode_session* session = (struct reencode_session*) (intptr_t) session_handle;
+    destroy_session(session);
+    free(session);
+}
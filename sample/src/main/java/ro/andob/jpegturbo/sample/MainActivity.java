@@ -20,6 +20,7 @@ import ro.andob.jpegturbo.JPEGReencodeArgs;
 import ro.andob.jpegturbo.JPEGTurbo;
 import ro.andob.jpegturbo.Jpegli;
 import ro.andob.jpegturbo.Mozjpeg;
+import ro.andob.jpegturbo.ReencodeResult;
 
 public class MainActivity extends Activity
 {
@@ -53,12 +54,14 @@ public class MainActivity extends Activity
         public final long deltaTime;
         public final long oldFileSize;
         public final long newFileSize;
+        public final String stageTimes;
 
-        public BenchmarkResults(long deltaTime, long oldFileSize, long newFileSize)
+        public BenchmarkResults(long deltaTime, long oldFileSize, long newFileSize, String stageTimes)
         {
             this.deltaTime = deltaTime;
             this.oldFileSize = oldFileSize;
             this.newFileSize = newFileSize;
+            this.stageTimes = stageTimes;
         }
 
         @Override
@@ -66,7 +69,8 @@ public class MainActivity extends Activity
         {
             return "Took: "+deltaTime+"ms\n"+
                    "Old file size: "+(((double)oldFileSize)/1024/1024)+"MB\n"+
-                   "New file size: "+(((double)newFileSize)/1024/1024)+"MB\n";
+                   "New file size: "+(((double)newFileSize)/1024/1024)+"MB\n"+
+                   stageTimes;
         }
     }
 
@@ -85,7 +89,16 @@ public class MainActivity extends Activity
         try (FileInputStream inputStream = new FileInputStream(outputFile)) { newFileSize = inputStream.available(); }
         catch (Exception ignored) {}
 
-        return new BenchmarkResults(deltaTime, oldFileSize, newFileSize);
+        return new BenchmarkResults(deltaTime, oldFileSize, newFileSize, /*stageTimes*/ "");
+    }
+
+    private BenchmarkResults benchmark(ReencodeResult result)
+    {
+        StringBuilder stageTimes = new StringBuilder();
+        for (ReencodeResult.Stage stage : ReencodeResult.Stage.values())
+            stageTimes.append(stage).append(": ").append(result.getWallTime(stage).toMillis()).append("ms\n");
+
+        return new BenchmarkResults(result.getWallTime().toMillis(), result.getInputSize(), result.getOutputSize(), stageTimes.toString());
     }
 
     @Override
@@ -103,7 +116,7 @@ public class MainActivity extends Activity
                     } catch (Exception ignored) {}
                 });
 
-                BenchmarkResults turbojpeg = benchmark(() ->
+                BenchmarkResults turbojpeg = benchmark(
                     JPEGTurbo.reencode(JPEGReencodeArgs.with(this)
                         .inputFile(inputFile)
                         .outputFile(outputFile)
@@ -111,7 +124,7 @@ public class MainActivity extends Activity
                         .errorLogger(Throwable::printStackTrace)
                         .warningLogger(Throwable::printStackTrace)));
 
-                BenchmarkResults mozjpeg = benchmark(() ->
+                BenchmarkResults mozjpeg = benchmark(
                     Mozjpeg.reencode(JPEGReencodeArgs.with(this)
                         .inputFile(inputFile)
                         .outputFile(outputFile)
@@ -119,7 +132,7 @@ public class MainActivity extends Activity
                         .errorLogger(Throwable::printStackTrace)
                         .warningLogger(Throwable::printStackTrace)));
 
-                BenchmarkResults jpegli = benchmark(() ->
+                BenchmarkResults jpegli = benchmark(
                     Jpegli.reencode(JPEGReencodeArgs.with(this)
                         .inputFile(inputFile)
                         .outputFile(outputFile)